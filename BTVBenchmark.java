@@ -0,0 +1,274 @@
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntSupplier;
+
+/**
+ * BTVBenchmark
+ * <p>
+ * Times reading nodes through each kind of accessor, laying out trees and painting
+ * them offscreen, on balanced, random and degenerate trees. Painting is timed twice: the
+ * viewport phase paints a window at full scale around the root, which only reaches the
+ * nodes in view, and the overview phase paints the whole tree scaled down to fit the
+ * window, a tile at a time like a window does. Runs without a display:
+ * <pre>
+ * javac *.java
+ * java -Xmx8g BTVBenchmark -sizes=1000,10000000 -shapes=random -phases=layout -parallel
+ * </pre>
+ * Each benchmark is warmed up, then run for a while. Time and allocation are reported
+ * per operation, where allocation is measured on the benchmark thread (so the worker
+ * threads of a parallel layout are not counted)
+ */
+public class BTVBenchmark {
+    private static final int[] SIZES = {1000, 10000, 100000, 1000000};
+    private static final String[] SHAPES = {"balanced", "random", "degenerate"};
+    private static final String[] PHASES = {"extract", "layout", "viewport", "overview"};
+    private static final String[] ACCESSORS = {"field", "method", "function"};
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 900;
+    
+    // seconds to warm up and to measure each benchmark for
+    private static double warmup = 1;
+    private static double measure = 2;
+    // whether to paint without antialiasing
+    private static boolean fast;
+    // keeps results alive so they are not optimized away
+    private static int sink;
+    
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int[] sizes = SIZES;
+        String[] shapes = SHAPES;
+        String[] phases = PHASES;
+        boolean parallel = false;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("-sizes="))
+                sizes = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+            else if (arg.startsWith("-shapes="))
+                shapes = value.split(",");
+            else if (arg.startsWith("-phases="))
+                phases = value.split(",");
+            else if (arg.startsWith("-warmup="))
+                warmup = Double.parseDouble(value);
+            else if (arg.startsWith("-measure="))
+                measure = Double.parseDouble(value);
+            else if (arg.equals("-parallel"))
+                parallel = true;
+            else if (arg.equals("-fast"))
+                fast = true;
+            else {
+                System.err.println("Usage: java BTVBenchmark [-sizes=1000,...] [-shapes=balanced,random,degenerate]"
+                    + " [-phases=extract,layout,viewport,overview] [-warmup=seconds] [-measure=seconds] [-parallel] [-fast]");
+                return;
+            }
+        }
+        
+        System.out.printf("%-8s %-10s %-9s %10s %12s %14s %10s%n", "phase", "shape", "accessor", "nodes", "ms/op",
+            "bytes/op", "MB/s");
+        for (String shape : shapes) {
+            for (int size : sizes) {
+                Node root = createTree(shape, size);
+                for (String phase : phases) {
+                    // layout and painting read nodes through the same accessors, so one is enough
+                    String[] accessors = phase.equals("extract") ? ACCESSORS : new String[] {"field"};
+                    for (String accessor : accessors) {
+                        BinaryTreeViewer viewer = createViewer(accessor).setParallel(parallel);
+                        run(phase, shape, accessor, size, createBenchmark(phase, viewer, root));
+                    }
+                }
+            }
+        }
+        if (sink == 42)
+            System.out.println();
+    }
+    
+    /**
+     * @param accessor how the viewer reads nodes
+     * @return viewer reading nodes with the accessor
+     */
+    private static BinaryTreeViewer createViewer(String accessor) {
+        switch (accessor) {
+            case "field":
+                return new BinaryTreeViewer();
+            case "method":
+                return new BinaryTreeViewer().setDataMethod("getData").setLeftChildMethod("getLeft")
+                    .setRightChildMethod("getRight");
+            case "function":
+                return new BinaryTreeViewer().setDataFunction(node -> ((Node) node).data)
+                    .setLeftChildFunction(node -> ((Node) node).left)
+                    .setRightChildFunction(node -> ((Node) node).right);
+            default:
+                throw new IllegalArgumentException("Unknown accessor " + accessor);
+        }
+    }
+    
+    /**
+     * @param phase  part of drawing a tree to time
+     * @param viewer viewer to draw with
+     * @param root   root node of tree
+     * @return one operation of the benchmark
+     */
+    private static IntSupplier createBenchmark(String phase, BinaryTreeViewer viewer, Node root) {
+        switch (phase) {
+            case "extract":
+                return () -> viewer.walkTree(root);
+            case "layout":
+                return () -> viewer.layoutNodes(root);
+            case "viewport":
+            case "overview":
+                BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = image.createGraphics();
+                if (!fast)
+                    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                Runnable paint = phase.equals("viewport") ? viewer.paintTask(g, WIDTH, HEIGHT, root)
+                    : viewer.overviewTask(g, WIDTH, HEIGHT, root);
+                return () -> {
+                    paint.run();
+                    return image.getRGB(WIDTH / 2, 0);
+                };
+            default:
+                throw new IllegalArgumentException("Unknown phase " + phase);
+        }
+    }
+    
+    /**
+     * Warms up a benchmark, then times it and prints the results
+     */
+    private static void run(String phase, String shape, String accessor, int size, IntSupplier benchmark) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+        for (long end = System.nanoTime() + (long) (warmup * 1e9); System.nanoTime() < end; )
+            sink += benchmark.getAsInt();
+        
+        int operations = 0;
+        long bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        long end = start + (long) (measure * 1e9);
+        long time;
+        do {
+            sink += benchmark.getAsInt();
+            operations++;
+            time = System.nanoTime();
+        } while (time < end || operations < 3);
+        bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+        
+        double seconds = (time - start) / 1e9;
+        System.out.printf("%-8s %-10s %-9s %10d %12.3f %14d %10.1f%n", phase, shape, accessor, size,
+            seconds * 1000 / operations, bytes / operations, bytes / seconds / 1e6);
+    }
+    
+    /**
+     * @param shape shape of tree
+     * @param size  number of nodes
+     * @return root node of tree
+     */
+    private static Node createTree(String shape, int size) {
+        Random random = new Random(size);
+        switch (shape) {
+            case "balanced":
+                return balanced(size, random);
+            case "random":
+                return random(size, random);
+            case "degenerate":
+                return degenerate(size, random);
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+    
+    /**
+     * Builds a complete tree, where node i has children 2i + 1 and 2i + 2
+     */
+    private static Node balanced(int size, Random random) {
+        Node[] nodes = new Node[size];
+        for (int i = size - 1; i >= 0; i--) {
+            nodes[i] = new Node((short) random.nextInt());
+            if (2 * i + 1 < size)
+                nodes[i].left = nodes[2 * i + 1];
+            if (2 * i + 2 < size)
+                nodes[i].right = nodes[2 * i + 2];
+        }
+        return (size == 0) ? null : nodes[0];
+    }
+    
+    /**
+     * Builds a binary search tree by adding random keys
+     */
+    private static Node random(int size, Random random) {
+        Node root = null;
+        List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < size; i++)
+            keys.add(i);
+        Collections.shuffle(keys, random);
+        for (int key : keys) {
+            Node added = new Node(key);
+            if (root == null) {
+                root = added;
+                continue;
+            }
+            Node node = root;
+            while (true) {
+                if (key < (int) node.data) {
+                    if (node.left == null) {
+                        node.left = added;
+                        break;
+                    }
+                    node = node.left;
+                }
+                else {
+                    if (node.right == null) {
+                        node.right = added;
+                        break;
+                    }
+                    node = node.right;
+                }
+            }
+        }
+        return root;
+    }
+    
+    /**
+     * Builds a path that zig-zags down, as deep as it has nodes
+     */
+    private static Node degenerate(int size, Random random) {
+        Node root = null;
+        for (int i = 0; i < size; i++) {
+            Node node = new Node((short) random.nextInt());
+            if (i % 2 == 0)
+                node.left = root;
+            else
+                node.right = root;
+            root = node;
+        }
+        return root;
+    }
+    
+    private static class Node {
+        private Object data;
+        private Node left;
+        private Node right;
+        
+        public Node(Object data) {
+            this.data = data;
+        }
+        
+        public Object getData() {
+            return data;
+        }
+        
+        public Node getLeft() {
+            return left;
+        }
+        
+        public Node getRight() {
+            return right;
+        }
+    }
+}
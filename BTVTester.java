@@ -1,88 +1,224 @@
-import java.util.Random;
-
-/**
- * BTVTester
- * @author Gahwon Lee
- */
-public class BTVTester {
-    public static void main(String[] args) {
-        //fractionTest();
-        viewerTest();
-    }
-    
-    // private static void fractionTest() {
-    //     BinaryTreeViewer.Fraction f1 = new BinaryTreeViewer.Fraction(717, 1);
-    //     BinaryTreeViewer.Fraction f2 = new BinaryTreeViewer.Fraction(718, 1);
-    //     System.out.println(f1 + " - " + f2 + " = " + f1.subtract(f2));
-    // }
-    
-    private static void viewerTest() {
-        BSTNode<Character> node = new BSTNode<>(new BSTNode<>(new BSTNode<>('A'), 'H', new BSTNode<>('N')), 'T', new BSTNode<>(new BSTNode<>('S'), 'K', new BSTNode<>('!')));
-        new BinaryTreeViewer("data", "left", "right").display(node);
-        
-        BSTNode<Short> bst = null;
-        Random random = new Random();
-        for (int REPEATS = 0; REPEATS < 400; REPEATS++) {
-            bst = add(bst, (short) random.nextInt());
-        }
-        new BinaryTreeViewer().setDataMethod("getData").setLeftChildMethod("getLeft()").display(bst, 1920, 900);
-    }
-    
-    private static <T extends Comparable<? super T>> BSTNode<T> add(BSTNode<T> root, T value) {
-        if (root == null)
-            return new BSTNode<>(value);
-        
-        int compare = root.data.compareTo(value);
-        if (compare > 0)
-            root.left = add(root.left, value);
-        else if (compare < 0)
-            root.right = add(root.right, value);
-        return root;
-    }
-    
-    private static class BSTNode<E extends Comparable<? super E>> {
-        private E data;
-        private BSTNode<E> left;
-        private BSTNode<E> right;
-        
-        public BSTNode() {
-            this(null);
-        }
-        
-        public BSTNode(E initValue) {
-            this(null, initValue, null);
-        }
-        
-        public BSTNode(BSTNode<E> initLeft,
-                       E initValue,
-                       BSTNode<E> initRight) {
-            data = initValue;
-            left = initLeft;
-            right = initRight;
-        }
-        
-        public E getData() {
-            return data;
-        }
-        
-        public BSTNode<E> getLeft() {
-            return left;
-        }
-        
-        public BSTNode<E> getRight() {
-            return right;
-        }
-        
-        public void setData(E theNewValue) {
-            data = theNewValue;
-        }
-        
-        public void setLeft(BSTNode<E> theNewLeft) {
-            left = theNewLeft;
-        }
-        
-        public void setRight(BSTNode<E> theNewRight) {
-            right = theNewRight;
-        }
-    }
-}
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * BTVTester
+ * @author Gahwon Lee
+ */
+public class BTVTester {
+    public static void main(String[] args) throws IOException {
+        diffTest();
+        parallelTest();
+        snapshotTest();
+        searchTest();
+        if (!GraphicsEnvironment.isHeadless())
+            viewerTest();
+    }
+    
+    private static void diffTest() {
+        BinaryTreeViewer viewer = new BinaryTreeViewer("data", "left", "right");
+        
+        // one of two equal leaves replaced: the other one is still in place
+        BSTNode<Integer> before = new BSTNode<>(new BSTNode<>(7), 5, new BSTNode<>(7));
+        BSTNode<Integer> after = new BSTNode<>(new BSTNode<>(7), 5, new BSTNode<>(9));
+        checkDiff(viewer.diffChanges(before, after),
+                  new String[] {null, "changed below", "removed"},
+                  new String[] {null, "changed below", "inserted"});
+        
+        // one of two nodes with the same text removed, while the other one stays in place
+        before = new BSTNode<>(new BSTNode<>(new BSTNode<>(1), 3, null), 5,
+                               new BSTNode<>(new BSTNode<>(null, 3, new BSTNode<>(4)), 8, null));
+        after = new BSTNode<>(new BSTNode<>(new BSTNode<>(2), 3, null), 5,
+                              new BSTNode<>(null, 8, new BSTNode<>(6)));
+        checkDiff(viewer.diffChanges(before, after),
+                  new String[] {"removed", "changed below", "changed below", "removed", "removed", "changed below"},
+                  new String[] {"inserted", "changed below", "changed below", "changed below", "inserted"});
+        
+        // one of two equal subtrees moved and the other one removed
+        before = new BSTNode<>(new BSTNode<>(new BSTNode<>(1), 2, null), 5,
+                               new BSTNode<>(new BSTNode<>(1), 2, null));
+        after = new BSTNode<>(null, 5, new BSTNode<>(null, 8, new BSTNode<>(new BSTNode<>(1), 2, null)));
+        checkDiff(viewer.diffChanges(before, after),
+                  new String[] {"removed", "removed", "changed below", null, "moved"},
+                  new String[] {"changed below", "inserted", null, "moved"});
+    }
+    
+    private static void checkDiff(String[][] changes, String[] before, String[] after) {
+        if (!Arrays.equals(changes[0], before) || !Arrays.equals(changes[1], after))
+            throw new AssertionError("expected " + Arrays.toString(before) + " " + Arrays.toString(after)
+                                     + " but was " + Arrays.toString(changes[0]) + " " + Arrays.toString(changes[1]));
+    }
+    
+    private static void parallelTest() {
+        BSTNode<Integer> bst = null;
+        Random random = new Random(1);
+        for (int REPEATS = 0; REPEATS < 5000; REPEATS++) {
+            bst = add(bst, random.nextInt(10000));
+        }
+        BSTNode<Integer> spine = null;
+        for (int i = 2000; i > 0; i--) {
+            spine = new BSTNode<>(spine, i, null);
+        }
+        for (BSTNode<Integer> root : Arrays.asList(bst, spine, new BSTNode<>(1), null)) {
+            for (BinaryTreeViewer.LayoutStrategy strategy : BinaryTreeViewer.LayoutStrategy.values()) {
+                BinaryTreeViewer viewer = new BinaryTreeViewer("data", "left", "right").setLayoutStrategy(strategy);
+                String[] serial = viewer.setParallel(false).layoutText(root);
+                checkEqual(viewer.setParallel(true).layoutText(root), serial, "parallel " + strategy + " layout");
+            }
+        }
+    }
+    
+    private static void snapshotTest() throws IOException {
+        BSTNode<Integer> bst = null;
+        Random random = new Random(2);
+        for (int REPEATS = 0; REPEATS < 3000; REPEATS++) {
+            bst = add(bst, random.nextInt(1000));
+        }
+        // repeated and non-ASCII text
+        BSTNode<String> words = new BSTNode<>(new BSTNode<>(new BSTNode<>("\u00e9t\u00e9"), "caf\u00e9", new BSTNode<>("")),
+                                              "\u65e5\u672c", new BSTNode<>(null, "caf\u00e9", new BSTNode<>("x")));
+        
+        BinaryTreeViewer viewer = new BinaryTreeViewer("data", "left", "right");
+        Path path = Files.createTempFile("btv", ".snapshot");
+        try {
+            for (BSTNode<?> root : Arrays.asList(bst, words, new BSTNode<>(1), null)) {
+                viewer.snapshot(root, path);
+                String[] expected = viewer.layoutText(root);
+                checkEqual(viewer.snapshotText(path, false), expected, "snapshot read whole");
+                checkEqual(viewer.snapshotText(path, true), expected, "snapshot read lazily");
+            }
+        }
+        finally {
+            Files.delete(path);
+        }
+    }
+    
+    private static void searchTest() {
+        BSTNode<Integer> numbers = null;
+        Random random = new Random(3);
+        int[] keys = new int[30];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i + 1;
+        }
+        for (int i = keys.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+        }
+        for (int key : keys) {
+            numbers = add(numbers, key);
+        }
+        BinaryTreeViewer viewer = new BinaryTreeViewer("data", "left", "right");
+        checkEqual(viewer.findText(numbers, "7"), new String[] {"7"}, "exact search");
+        checkEqual(viewer.findText(numbers, "31"), new String[0], "exact search");
+        checkEqual(viewer.findText(numbers, "2*"),
+                   new String[] {"2", "20", "21", "22", "23", "24", "25", "26", "27", "28", "29"}, "prefix search");
+        checkEqual(viewer.findText(numbers, "5..9"), new String[] {"5", "6", "7", "8", "9"}, "range search");
+        checkEqual(viewer.findText(numbers, "..3"), new String[] {"1", "2", "3"}, "range search");
+        checkEqual(viewer.findText(numbers, "28.."), new String[] {"28", "29", "30"}, "range search");
+        
+        BSTNode<String> words = null;
+        for (String word : new String[] {"date", "banana", "fig", "apple", "cherry", "dates"}) {
+            words = add(words, word);
+        }
+        checkEqual(viewer.findText(words, "ch*"), new String[] {"cherry"}, "prefix search");
+        checkEqual(viewer.findText(words, "date*"), new String[] {"date", "dates"}, "prefix search");
+        checkEqual(viewer.findText(words, "b..date"), new String[] {"banana", "cherry", "date"}, "range search");
+        checkEqual(viewer.findText(words, "c.."), new String[] {"cherry", "date", "dates", "fig"}, "range search");
+    }
+    
+    private static void checkEqual(String[] actual, String[] expected, String what) {
+        if (!Arrays.equals(actual, expected))
+            throw new AssertionError(what + ": expected " + Arrays.toString(expected) + " but was "
+                                     + Arrays.toString(actual));
+    }
+    
+    private static void viewerTest() {
+        BSTNode<Character> node = new BSTNode<>(new BSTNode<>(new BSTNode<>('A'), 'H', new BSTNode<>('N')), 'T', new BSTNode<>(new BSTNode<>('S'), 'K', new BSTNode<>('!')));
+        new BinaryTreeViewer("data", "left", "right").display(node);
+        
+        BSTNode<Short> bst = null;
+        Random random = new Random();
+        for (int REPEATS = 0; REPEATS < 400; REPEATS++) {
+            bst = add(bst, (short) random.nextInt());
+        }
+        new BinaryTreeViewer().setDataMethod("getData").setLeftChildMethod("getLeft()").display(bst, 1920, 900);
+    }
+    
+    private static <T extends Comparable<? super T>> BSTNode<T> add(BSTNode<T> root, T value) {
+        if (root == null)
+            return new BSTNode<>(value);
+        
+        BSTNode<T> node = root;
+        while (true) {
+            int compare = node.data.compareTo(value);
+            if (compare > 0) {
+                if (node.left == null) {
+                    node.left = new BSTNode<>(value);
+                    return root;
+                }
+                node = node.left;
+            }
+            else if (compare < 0) {
+                if (node.right == null) {
+                    node.right = new BSTNode<>(value);
+                    return root;
+                }
+                node = node.right;
+            }
+            else
+                return root;
+        }
+    }
+    
+    private static class BSTNode<E extends Comparable<? super E>> {
+        private E data;
+        private BSTNode<E> left;
+        private BSTNode<E> right;
+        
+        public BSTNode() {
+            this(null);
+        }
+        
+        public BSTNode(E initValue) {
+            this(null, initValue, null);
+        }
+        
+        public BSTNode(BSTNode<E> initLeft,
+                       E initValue,
+                       BSTNode<E> initRight) {
+            data = initValue;
+            left = initLeft;
+            right = initRight;
+        }
+        
+        public E getData() {
+            return data;
+        }
+        
+        public BSTNode<E> getLeft() {
+            return left;
+        }
+        
+        public BSTNode<E> getRight() {
+            return right;
+        }
+        
+        public void setData(E theNewValue) {
+            data = theNewValue;
+        }
+        
+        public void setLeft(BSTNode<E> theNewLeft) {
+            left = theNewLeft;
+        }
+        
+        public void setRight(BSTNode<E> theNewRight) {
+            right = theNewRight;
+        }
+    }
+}
@@ -1,653 +1,7222 @@
-import javax.swing.*;
-import java.awt.*;
-import java.awt.event.*;
-import java.awt.geom.Line2D;
-import java.awt.geom.RoundRectangle2D;
-import java.awt.image.BufferedImage;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.function.Function;
-
-/**
- * BinaryTreeViewer draws binary trees using Swing.
- * Draw the tree using {@link #display(Object)}
- * @author Gahwon Lee
- */
-public class BinaryTreeViewer {
-    /**
-     * Minimum width of each node
-     */
-    public static final double MIN_WIDTH = 20;
-    /**
-     * Height of node
-     */
-    public static final double HEIGHT = 20;
-    /**
-     * Maximum height of edge
-     */
-    public static final double MAX_HEIGHT_SEPARATION = 80;
-    
-    // functions to call to extract data
-    private Function<Object, Object> getData;
-    private Function<Object, Object> getLeft;
-    private Function<Object, Object> getRight;
-    
-    // frame to display tree on
-    private JFrame frame;
-    private JPanel panel;
-    
-    /**
-     * Constructs a Binary Tree Viewer by parsing these instance variables (can be
-     * private)
-     * <p>
-     * Data is parsed from the instance variable {@code data},
-     * left child is parsed from the instance variable {@code left},
-     * right child is parsed from the instance variable {@code right}
-     */
-    public BinaryTreeViewer() {
-        this("data");
-    }
-    
-    /**
-     * Constructs a Binary Tree Viewer by parsing these instance variables (can be
-     * private)
-     * <p>
-     * left child is parsed from the instance variable {@code left},
-     * right child is parsed from the instance variable {@code right}
-     * @param dataName Data is parsed from this instance variable
-     */
-    public BinaryTreeViewer(String dataName) {
-        this(dataName, "left", "right");
-    }
-    
-    /**
-     * Constructs a Binary Tree Viewer by parsing these instance variables (can be
-     * private)
-     * <p>
-     * Data is parsed from the instance variable {@code data}
-     * @param leftChildName  left child is parsed from this instance variable
-     * @param rightChildName right child is parsed from this instance variable
-     */
-    public BinaryTreeViewer(String leftChildName, String rightChildName) {
-        this("data", leftChildName, rightChildName);
-    }
-    
-    /**
-     * Constructs a Binary Tree Viewer by parsing these instance variables (can be
-     * private)
-     * @param dataName       Data is parsed from this instance variable
-     * @param leftChildName  left child is parsed from this instance variable
-     * @param rightChildName right child is parsed from this instance variable
-     */
-    public BinaryTreeViewer(String dataName, String leftChildName, String rightChildName) {
-        setDataVariable(dataName);
-        setLeftChildVariable(leftChildName);
-        setRightChildVariable(rightChildName);
-    }
-    
-    /**
-     * Draws the tree
-     * @param rootNode root node of the tree
-     */
-    public void display(Object rootNode) {
-        display(rootNode, 1280, 720);
-    }
-    
-    /**
-     * Draws the tree
-     * @param rootNode root node of the tree
-     * @param width    width of the window to display
-     * @param height   height of the window to display
-     */
-    public void display(Object rootNode, int width, int height) {
-        
-        panel = new JPanel(new FlowLayout(FlowLayout.CENTER, 0, 0));
-        panel.setBackground(Color.WHITE);
-        panel.setPreferredSize(new Dimension(width, height));
-        
-        Graphics2D g2 = createDrawable(width, height);
-        
-        // anti aliasing
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        g2.setStroke(new BasicStroke(1.1f));
-        
-        frame = new JFrame("Binary Tree Viewer");
-        frame.setResizable(false);
-        frame.getContentPane().add(panel);
-        frame.pack();
-        frame.setVisible(true);
-        frame.toFront();
-        frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
-        
-        // draw tree
-        try {
-            drawTree(g2, width, height, rootNode);
-            panel.repaint();
-        }
-        catch (Exception e) {
-            exitFrame();
-            e.printStackTrace();
-        }
-    }
-    
-    /**
-     * Creates a new image where the tree will be drawn
-     * @param width  width of image
-     * @param height height of image
-     * @return graphics that you can draw on to affect the image
-     */
-    private Graphics2D createDrawable(int width, int height) {
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        panel.removeAll();
-        panel.add(new JLabel(new ImageIcon(image)));
-        return (Graphics2D) image.getGraphics();
-    }
-    
-    /**
-     * Draws the edges and the nodes of the tree
-     * @param g        graphics to draw to
-     * @param width    width of graphics
-     * @param height   height of graphics
-     * @param rootNode root node of tree
-     */
-    private void drawTree(Graphics2D g, int width, int height, Object rootNode) {
-        // calculate spacing
-        TreeMap<Fraction, DrawableNode> nodes = new TreeMap<>();
-        int maxDepth = parseTree(nodes, rootNode, new Fraction(0, 1), new Fraction(2048, 1),
-            1, null, g);
-        double offsetX = 0;
-        double startX = 0;
-        double deltaX = (nodes.size() > 20) ? 1 : 1.5;
-        int middle = nodes.size() / 2;
-        for (Map.Entry<Fraction, DrawableNode> entry : nodes.entrySet()) {
-            entry.getValue().setX(startX);
-            if (middle == 0)
-                offsetX = width / 2 - startX;
-            middle--;
-            startX += entry.getValue().getWidth() * deltaX;
-        }
-        
-        double deltaY = Math.min(height / (maxDepth + 1), MAX_HEIGHT_SEPARATION);
-        
-        // draw edges
-        g.setColor(Color.BLACK);
-        for (Map.Entry<Fraction, DrawableNode> entry : nodes.entrySet()) {
-            DrawableNode to = entry.getValue();
-            DrawableNode from = to.getFrom();
-            if (from != null) {
-                g.draw(new Line2D.Double(to.getX() + offsetX, to.getY(deltaY), from.getX() + offsetX,
-                    from.getY(deltaY)));
-            }
-        }
-        
-        // draw nodes
-        for (Map.Entry<Fraction, DrawableNode> entry : nodes.entrySet()) {
-            entry.getValue().drawNode(g, offsetX, deltaY);
-        }
-    }
-    
-    /**
-     * Helper method to order nodes from left to right to figure out spacing
-     * @param nodes  nodes sorted by order from left to right
-     * @param node   current node being sorted
-     * @param center position where the node will be added
-     * @param delta  x distance from this to children
-     * @param depth  depth of current node in tree
-     * @param from   parent node
-     * @param g      graphics to calculate width of data
-     * @return maximum depth
-     */
-    private int parseTree(TreeMap<Fraction, DrawableNode> nodes, Object node, Fraction center,
-                          Fraction delta, int depth, DrawableNode from, Graphics2D g) {
-        if (node == null)
-            return depth;
-        DrawableNode drawableNode = new DrawableNode(depth, getData.apply(node), from, g);
-        nodes.put(center, drawableNode);
-        Object left = getLeft.apply(node);
-        Fraction nextDelta = delta.divide(2);
-        int maxDepth = depth;
-        if (left != null) {
-            maxDepth = parseTree(nodes, left, center.subtract(delta), nextDelta, depth + 1,
-                drawableNode, g);
-        }
-        Object right = getRight.apply(node);
-        if (right != null) {
-            maxDepth = Math.max(maxDepth, parseTree(nodes, right, center.add(delta), nextDelta,
-                depth + 1, drawableNode, g));
-        }
-        return maxDepth;
-    }
-    
-    /**
-     * Holds drawing info for a node
-     */
-    private class DrawableNode {
-        /**
-         * Depth of node in tree
-         */
-        private int depth;
-        /**
-         * Width of the rectangle to draw the value in
-         */
-        private double width;
-        /**
-         * Text value to draw within rectangle
-         */
-        private String text;
-        /**
-         * X position of the node, set using {@link #setX(double)}
-         */
-        private double x;
-        /**
-         * Parent node (to draw edges)
-         */
-        private DrawableNode from;
-        
-        /**
-         * Constructs a new drawable node
-         * @param depth depth of node
-         * @param value value to convert to a string
-         * @param from  parent node or null if root
-         * @param g     graphics to use when getting the drawing width of the value
-         */
-        public DrawableNode(int depth, Object value, DrawableNode from, Graphics2D g) {
-            this.depth = depth;
-            this.text = String.valueOf(value);
-            this.from = from;
-            width = Math.max(MIN_WIDTH, 2 + g.getFontMetrics().charsWidth(text.toCharArray(), 0, text.length()));
-        }
-        
-        /**
-         * Draws the node
-         * @param g      graphics to draw on
-         * @param offset offset in x position of node
-         */
-        public void drawNode(Graphics2D g, double offset, double deltaY) {
-            FontMetrics metrics = g.getFontMetrics();
-            String text = String.valueOf(this.text);
-            
-            RoundRectangle2D.Double rect = new RoundRectangle2D.Double(x + offset - width / 2,
-                getY(deltaY) - HEIGHT / 2, width, HEIGHT, width / 4, HEIGHT / 4);
-            g.setColor(Color.WHITE);
-            g.fill(rect);
-            g.setColor(Color.BLACK);
-            g.draw(rect);
-            
-            double xx = rect.x + (rect.width - metrics.stringWidth(text)) / 2;
-            double yy = rect.y + ((rect.height - metrics.getHeight()) / 2) + metrics.getAscent();
-            
-            g.drawString(text, doubleToInt(xx), doubleToInt(yy));
-        }
-        
-        public double getX() {
-            return x;
-        }
-        
-        public void setX(double x) {
-            this.x = x;
-        }
-        
-        private double getY(double deltaY) {
-            return depth * deltaY;
-        }
-        
-        public double getWidth() {
-            return width;
-        }
-        
-        public DrawableNode getFrom() {
-            return from;
-        }
-        
-        @Override
-        public String toString() {
-            return text + "$" + depth;
-        }
-    }
-    
-    /**
-     * Object to prevent floating point precision error. This Fraction is immutable
-     */
-    private static class Fraction implements Comparable<Fraction> {
-        /**
-         * Numerator value
-         */
-        private final int num;
-        /**
-         * Denominator value
-         */
-        private final int den;
-        
-        /**
-         * Constructs a new Fraction
-         * @param num numerator
-         * @param den denominator
-         */
-        public Fraction(int num, int den) {
-            this.num = num;
-            this.den = den;
-            if (den < 0) {
-                num *= -1;
-                den *= -1;
-            }
-        }
-        
-        /**
-         * this + other
-         * @param other fraction to add to this
-         * @return this + other
-         */
-        public Fraction add(Fraction other) {
-            int lcm = lcm(den, other.den);
-            return new Fraction(num * (lcm / den) + other.num * (lcm / other.den), lcm).reduce();
-        }
-        
-        /**
-         * this - other
-         * @param other fraction to subtract from this
-         * @return this - other
-         */
-        public Fraction subtract(Fraction other) {
-            int lcm = lcm(den, other.den);
-            return new Fraction(num * (lcm / den) - other.num * (lcm / other.den), lcm).reduce();
-        }
-        
-        /**
-         * this * (1 / num)
-         * @param num number to divide this by
-         * @return this / num
-         */
-        public Fraction divide(int num) {
-            return new Fraction(this.num, den * num).reduce();
-        }
-        
-        /**
-         * Reduces the fraction (does not mutate this)
-         * @return reduced fraction
-         */
-        public Fraction reduce() {
-            int num = Math.abs(this.num);
-            int den = Math.abs(this.den);
-            
-            int gcd;
-            if (num > den)
-                gcd = gcd(num, den);
-            else if (num < den)
-                gcd = gcd(den, num);
-            else
-                gcd = 1;
-            
-            return new Fraction(this.num / gcd, this.den / gcd);
-        }
-        
-        /**
-         * Greatest common denominator of two integers
-         * @param a first integer
-         * @param b second integer
-         * @return greatest common denominator of a and b
-         */
-        public int gcd(int a, int b) {
-            while (b > 0) {
-                int t = b;
-                b = a % b;
-                a = t;
-            }
-            return Math.abs(a);
-        }
-        
-        /**
-         * Least common multiple of two integers
-         * @param a first integer
-         * @param b second integer
-         * @return least common multiple of a and b
-         */
-        public int lcm(int a, int b) {
-            return Math.abs(b / gcd(a, b) * a);
-        }
-        
-        @Override
-        public String toString() {
-            return num + "/" + den;
-        }
-        
-        @Override
-        public int compareTo(Fraction o) {
-            return subtract(o).num;
-        }
-        
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            
-            Fraction reduced = reduce();
-            Fraction other = ((Fraction) o).reduce();
-            
-            return reduced.num == other.num && reduced.den == other.den;
-        }
-    }
-    
-    /**
-     * Use this method if you want this to get the data from an instance variable (which
-     * can be private)
-     * @param variableName name of variable to get in the node class
-     * @return this for chaining
-     */
-    public BinaryTreeViewer setDataVariable(String variableName) {
-        setDataFunction(new ValueFunction(variableName) {
-            @Override
-            public Object apply(Object o) {
-                try {
-                    Field data = o.getClass().getDeclaredField(getValue());
-                    data.setAccessible(true);
-                    return data.get(o);
-                    
-                }
-                catch (NoSuchFieldException | IllegalAccessException e) {
-                    e.printStackTrace();
-                }
-                throw new IllegalArgumentException("Exception when accessing data of node. Make sure data variable name "
-                    + getValue() + " is spelled correctly.");
-            }
-        });
-        return this;
-    }
-    
-    /**
-     * Use this method if you want this to get the data from a method. The method must
-     * return the data and not take any parameters
-     * @param methodName name of method to call in the node class
-     * @return this for chaining
-     */
-    public BinaryTreeViewer setDataMethod(String methodName) {
-        methodName = methodName.replaceAll("[()]", "");
-        setDataFunction(new ValueFunction(methodName) {
-            @Override
-            public Object apply(Object o) {
-                try {
-                    Method method = o.getClass().getDeclaredMethod(getValue());
-                    method.setAccessible(true);
-                    return method.invoke(o);
-                }
-                catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-                    e.printStackTrace();
-                }
-                throw new IllegalArgumentException("Exception when accessing method. Make sure the method name "
-                    + getValue() + " is spelled correctly, has no parameters, and returns an object.");
-            }
-        });
-        return this;
-    }
-    
-    /**
-     * Use this method if you want this to get the data from a function. The function
-     * passes in a node and expects its data
-     * @param getData function to use when extracting data
-     * @return this for chaining
-     */
-    public BinaryTreeViewer setDataFunction(Function<Object, Object> getData) {
-        this.getData = getData;
-        return this;
-    }
-    
-    /**
-     * Use this method if you want this to get the left child from an instance variable
-     * (which can be private)
-     * @param variableName name of variable to get in the node class
-     * @return this for chaining
-     */
-    public BinaryTreeViewer setLeftChildVariable(String variableName) {
-        setLeftChildFunction(new ValueFunction(variableName) {
-            @Override
-            public Object apply(Object o) {
-                try {
-                    Field left = o.getClass().getDeclaredField(getValue());
-                    left.setAccessible(true);
-                    return left.get(o);
-                    
-                }
-                catch (NoSuchFieldException | IllegalAccessException e) {
-                    e.printStackTrace();
-                }
-                throw new IllegalArgumentException("Exception when accessing data of node. Make sure left child variable name "
-                    + getValue() + " is spelled correctly.");
-            }
-        });
-        return this;
-    }
-    
-    /**
-     * Use this method if you want this to get the left child from a method. The method
-     * must return the left child node and not take any parameters
-     * @param methodName name of method to call in the node class
-     * @return this for chaining
-     */
-    public BinaryTreeViewer setLeftChildMethod(String methodName) {
-        methodName = methodName.replaceAll("[()]", "");
-        setLeftChildFunction(new ValueFunction(methodName) {
-            @Override
-            public Object apply(Object o) {
-                try {
-                    Method method = o.getClass().getDeclaredMethod(getValue());
-                    method.setAccessible(true);
-                    return method.invoke(o);
-                }
-                catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-                    e.printStackTrace();
-                }
-                throw new IllegalArgumentException("Exception when accessing method. Make sure the method name "
-                    + getValue() + " is spelled correctly, has no parameters, and returns an object.");
-            }
-        });
-        return this;
-    }
-    
-    /**
-     * Use this method if you want this to get the left child from a function. The
-     * function passes in a node and expects its left child node
-     * @param getLeft function to use when extracting left child node
-     * @return this for chaining
-     */
-    public BinaryTreeViewer setLeftChildFunction(Function<Object, Object> getLeft) {
-        this.getLeft = getLeft;
-        return this;
-    }
-    
-    /**
-     * Use this method if you want this to get the right child from an instance variable
-     * (which can be private)
-     * @param variableName name of variable to get in the node class
-     * @return this for chaining
-     */
-    public BinaryTreeViewer setRightChildVariable(String variableName) {
-        setRightChildFunction(new ValueFunction(variableName) {
-            @Override
-            public Object apply(Object o) {
-                try {
-                    Field right = o.getClass().getDeclaredField(getValue());
-                    right.setAccessible(true);
-                    return right.get(o);
-                    
-                }
-                catch (NoSuchFieldException | IllegalAccessException e) {
-                    e.printStackTrace();
-                }
-                throw new IllegalArgumentException("Exception when accessing data of node. Make sure right child variable name "
-                    + getValue() + " is spelled correctly.");
-            }
-        });
-        return this;
-    }
-    
-    /**
-     * Use this method if you want this to get the right child from a method. The method
-     * must return the right child node and not take any parameters
-     * @param methodName name of method to call in the node class
-     * @return this for chaining
-     */
-    public BinaryTreeViewer setRightChildMethod(String methodName) {
-        methodName = methodName.replaceAll("[()]", "");
-        setRightChildFunction(new ValueFunction(methodName) {
-            @Override
-            public Object apply(Object o) {
-                try {
-                    Method method = o.getClass().getDeclaredMethod(getValue());
-                    method.setAccessible(true);
-                    return method.invoke(o);
-                }
-                catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
-                    e.printStackTrace();
-                }
-                throw new IllegalArgumentException("Exception when accessing method. Make sure the method name "
-                    + getValue() + " is spelled correctly, has no parameters, and returns an object.");
-            }
-        });
-        return this;
-    }
-    
-    /**
-     * Use this method if you want this to get the right child from a function. The
-     * function passes in a node and expects its right child node
-     * @param getRight function to use when extracting right child node
-     * @return this for chaining
-     */
-    public BinaryTreeViewer setRightChildFunction(Function<Object, Object> getRight) {
-        this.getRight = getRight;
-        return this;
-    }
-    
-    /**
-     * Implementation of Function that takes in a value during construction
-     */
-    private static abstract class ValueFunction implements Function<Object, Object> {
-        private String value;
-        
-        public ValueFunction(String value) {
-            this.value = value;
-        }
-        
-        public String getValue() {
-            return value;
-        }
-    }
-    
-    /**
-     * Exits the frame. Use in case of any exception
-     */
-    private void exitFrame() {
-        if (frame != null)
-            frame.dispatchEvent(new WindowEvent(frame, WindowEvent.WINDOW_CLOSING));
-    }
-    
-    /**
-     * Converts a double to an integer by calling {@link Math#round(double)}
-     * @param d double to convert to integer
-     * @return integer version of the double
-     */
-    private int doubleToInt(double d) {
-        return (int) Math.round(d);
-    }
-}
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.geom.Line2D;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * BinaryTreeViewer draws binary trees using Swing.
+ * Draw the tree using {@link #display(Object)}
+ * @author Gahwon Lee
+ */
+public class BinaryTreeViewer {
+    /**
+     * Minimum width of each node
+     */
+    public static final double MIN_WIDTH = 20;
+    /**
+     * Height of node
+     */
+    public static final double HEIGHT = 20;
+    /**
+     * Maximum height of edge
+     */
+    public static final double MAX_HEIGHT_SEPARATION = 80;
+    /**
+     * Minimum height of edge in the window, which can be scrolled and zoomed
+     */
+    public static final double MIN_HEIGHT_SEPARATION = 30;
+    /**
+     * Default minimum width in pixels of a subtree drawn node by node
+     */
+    public static final double DETAIL_WIDTH = 8;
+    /**
+     * Length of the mark below a node whose children have not been read yet
+     */
+    private static final double STUB_LENGTH = 10;
+    /**
+     * Length of the head of the arrow from a node to a node reached before by another path
+     */
+    private static final double ARROW_LENGTH = 7;
+    /**
+     * Color of the arrows from nodes to nodes reached before by another path
+     */
+    private static final Color REFERENCE_COLOR = new Color(150, 50, 200);
+    /**
+     * Color of the outlines of nodes that match the search of the window, and of the
+     * collapsed subtrees they are in
+     */
+    private static final Color SEARCH_COLOR = new Color(230, 0, 160);
+    /**
+     * Image the font is measured on without a window. Each measurement creates its own
+     * graphics, so it is shared by all threads
+     */
+    private static final BufferedImage FONT_IMAGE = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+    /**
+     * Fill of nodes in the shape overlay by how unbalanced they are: nodes whose child
+     * subtrees differ in height by at most 1, by 2 to 3, by 4 to 7, and by 8 or more
+     */
+    private static final Color[] IMBALANCE_COLORS = {Color.WHITE, new Color(255, 240, 150),
+        new Color(255, 190, 100), new Color(250, 120, 110)};
+    /**
+     * Number of levels shown first when a tree is displayed. Each later drawing reads
+     * twice as many levels, until the whole tree is read
+     */
+    private static final int FIRST_LEVELS = 4;
+    /**
+     * Number of levels of a snapshot read at a time below the root and below each stub
+     * that comes into view, unless {@link #setLazyDepth(int)} says otherwise
+     */
+    private static final int SNAPSHOT_LEVELS = 8;
+    /**
+     * Number of nodes a drawing of the top levels of a displayed tree is kept under
+     */
+    private static final int PROGRESSIVE_SIZE = 1 << 16;
+    /**
+     * Smallest size of a cell of a dashboard, which scrolls once its cells would be smaller
+     */
+    private static final int MIN_CELL_WIDTH = 320;
+    private static final int MIN_CELL_HEIGHT = 240;
+    /**
+     * Width of the list of the shape of the tree beside the window
+     */
+    private static final int SHAPE_PANEL_WIDTH = 380;
+    /**
+     * Space left around a tree drawn at full size
+     */
+    private static final int FULL_SIZE_MARGIN = 20;
+    /**
+     * Most bytes of the rows of a strip of an image drawn at full size, unless a single
+     * row is longer. Strips are drawn in tiles this many pixels wide
+     */
+    private static final int STRIP_BYTES = 1 << 24;
+    private static final int STRIP_TILE_WIDTH = 2048;
+    private static final int MAX_STRIP_HEIGHT = 256;
+    /**
+     * Colors of images drawn at full size with antialiasing: a 6 by 6 by 6 color cube,
+     * then grays between the grays of the cube, so the edges of antialiased lines keep
+     * their shade
+     */
+    private static final int[] PALETTE = createPalette();
+    // index in PALETTE of the gray nearest to each gray level
+    private static final byte[] GRAY_INDEX = grayIndex(PALETTE);
+    
+    // functions to call to extract data
+    private Function<Object, Object> getData;
+    private Function<Object, Object> getLeft;
+    private Function<Object, Object> getRight;
+    // function to call to extract all children, which replaces getLeft and getRight, or null
+    private Function<Object, Object> getChildren;
+    
+    // frame to display tree on, set on the event dispatch thread and read by the update
+    // thread and callers of update
+    private volatile JFrame frame;
+    private volatile TreeCanvas canvas;
+    // describes the matches of the search of the window
+    private JLabel searchStatus;
+    // describes the shape of the tree of the window, and the rank of the node each line
+    // is about, or -1
+    private JList<String> shapeList;
+    private int[] shapeRanks = new int[0];
+    // text of the nodes to find in the window, and the latest text typed that has not
+    // been searched for yet, or null
+    private volatile String query = "";
+    private final AtomicReference<String> pendingQuery = new AtomicReference<>();
+    // image reused when rendering without a window, only used while holding its lock
+    private final Object offscreenLock = new Object();
+    private BufferedImage offscreen;
+    // minimum width in pixels of a subtree drawn node by node
+    private double detailWidth = DETAIL_WIDTH;
+    // whether to draw without antialiasing
+    private boolean fastPaint;
+    // whether windows are drawn by active rendering instead of by Swing
+    private boolean activeRendering;
+    // whether windows color nodes by imbalance and list the shape of the tree
+    private boolean analytics;
+    // whether to lay out trees on the fork join pool
+    private boolean parallel;
+    // how to place nodes side by side
+    private LayoutStrategy layoutStrategy = LayoutStrategy.IN_ORDER;
+    
+    // number of levels to read below the root and below each stub that comes into view,
+    // or 0 to read the whole tree
+    private int lazyDepth;
+    // data and children of the nodes read so far by a lazy layout, by identity
+    private volatile Map<Object, Object[]> fetched = new IdentityHashMap<>();
+    // stubs that came into view, whose children are read by the next layout
+    private final Set<Object> expanded = Collections.synchronizedSet(Collections.newSetFromMap(
+        new IdentityHashMap<>()));
+    // root of the tree in the window, and whether it changed since its nodes were read
+    private volatile Object root;
+    private volatile boolean refetch;
+    // lock writers of the tree hold, which is held while the tree is copied, or null to
+    // read the tree in place. Under a stamped lock, the tree is first copied a number of
+    // times without locking
+    private Lock captureLock;
+    private StampedLock captureStampedLock;
+    private int optimisticReads;
+    // number of nodes in the last copy, which the next copy is sized for
+    private volatile int capturedSize;
+    // labels measured in each font and rendering context trees are laid out with
+    private final Map<List<Object>, LabelCache> labelCaches = new ConcurrentHashMap<>();
+    
+    // latest root passed to update that has not been drawn yet, or NO_UPDATE
+    private final AtomicReference<Object> pendingRoot = new AtomicReference<>(NO_UPDATE);
+    private static final Object NO_UPDATE = new Object();
+    // child of a node that has not been read yet
+    private static final Object NOT_FETCHED = new Object();
+    private static final Object[] NO_CHILDREN = new Object[0];
+    
+    // format of snapshots: the bytes BTVS, and the length of the end of the file
+    private static final int SNAPSHOT_MAGIC = 0x42545653;
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int SNAPSHOT_TRAILER = 32;
+    // files of version 1 have no tables to find nodes by, so they are read whole
+    private static final int SNAPSHOT_TRAILER_1 = 24;
+    // thread that lays out displayed and updated trees
+    private ExecutorService updater;
+    private volatile Thread updateThread;
+    // layout of the tree passed to display, which draws it as it goes
+    private volatile Future<?> layoutJob;
+    // whether the update thread is to give up the layout it is doing. Layouts poll this
+    // rather than being interrupted, since an interrupt would also reach the accessors and
+    // close any file they read from
+    private volatile boolean layoutCancelled;
+    // threads that draw the tiles of dashboards, shared by all viewers
+    private static ExecutorService tilePainters;
+    
+    // whether renders are measured, and the calls to the accessors and the nanoseconds
+    // spent in them while they are
+    private volatile boolean instrumented;
+    private final LongAdder accessorCalls = new LongAdder();
+    private final LongAdder accessorTime = new LongAdder();
+    // nanoseconds spent copying trees under a capture lock, and copies thrown away because
+    // a writer changed the tree while it was read without locking
+    private final LongAdder captureTime = new LongAdder();
+    private final LongAdder tornCaptures = new LongAdder();
+    
+    /**
+     * Constructs a Binary Tree Viewer by parsing these instance variables (can be
+     * private)
+     * <p>
+     * Data is parsed from the instance variable {@code data},
+     * left child is parsed from the instance variable {@code left},
+     * right child is parsed from the instance variable {@code right}
+     */
+    public BinaryTreeViewer() {
+        this("data");
+    }
+    
+    /**
+     * Constructs a Binary Tree Viewer by parsing these instance variables (can be
+     * private)
+     * <p>
+     * left child is parsed from the instance variable {@code left},
+     * right child is parsed from the instance variable {@code right}
+     * @param dataName Data is parsed from this instance variable
+     */
+    public BinaryTreeViewer(String dataName) {
+        this(dataName, "left", "right");
+    }
+    
+    /**
+     * Constructs a Binary Tree Viewer by parsing these instance variables (can be
+     * private)
+     * <p>
+     * Data is parsed from the instance variable {@code data}
+     * @param leftChildName  left child is parsed from this instance variable
+     * @param rightChildName right child is parsed from this instance variable
+     */
+    public BinaryTreeViewer(String leftChildName, String rightChildName) {
+        this("data", leftChildName, rightChildName);
+    }
+    
+    /**
+     * Constructs a Binary Tree Viewer by parsing these instance variables (can be
+     * private)
+     * @param dataName       Data is parsed from this instance variable
+     * @param leftChildName  left child is parsed from this instance variable
+     * @param rightChildName right child is parsed from this instance variable
+     */
+    public BinaryTreeViewer(String dataName, String leftChildName, String rightChildName) {
+        setDataVariable(dataName);
+        setLeftChildVariable(leftChildName);
+        setRightChildVariable(rightChildName);
+    }
+    
+    /**
+     * Draws the tree
+     * @param rootNode root node of the tree
+     */
+    public void display(Object rootNode) {
+        display(rootNode, 1280, 720);
+    }
+    
+    /**
+     * Draws the tree. This returns once the window is open. The tree is laid out on a
+     * background thread and drawn a few levels at a time, top levels first
+     * @param rootNode root node of the tree
+     * @param width    width of the window to display
+     * @param height   height of the window to display
+     */
+    public void display(Object rootNode, int width, int height) {
+        cancelLayout();
+        root = rootNode;
+        fetched = new IdentityHashMap<>();
+        expanded.clear();
+        runOnEventThread(() -> {
+            openWindow(width, height);
+            canvas.setStubListener(this::expand);
+        });
+        
+        // draw tree
+        TreeCanvas canvas = this.canvas;
+        layoutJob = worker().submit(() -> {
+            layoutCancelled = false;
+            try {
+                drawProgressively(canvas, rootNode, width, height);
+            }
+            catch (CancellationException e) {
+                // a newer tree was passed in
+            }
+            catch (Exception e) {
+                exitFrame();
+                e.printStackTrace();
+            }
+        });
+    }
+    
+    /**
+     * Lays out the top levels of a tree and draws them, then draws it again with more
+     * levels each time until the whole tree is drawn. Runs on the update thread and
+     * stops with a {@link CancellationException} once the layout is cancelled
+     * @param canvas   canvas to draw in
+     * @param rootNode root node of the tree
+     * @param width    width of the window
+     * @param height   height of the window
+     */
+    private void drawProgressively(TreeCanvas canvas, Object rootNode, int width, int height) {
+        FontMetrics metrics = measureFont();
+        boolean first = true;
+        int previousSize = 1;
+        int lazyLevels = lazyLevels(rootNode);
+        for (int levels = FIRST_LEVELS; lazyLevels == 0 || levels < lazyLevels; levels *= 2) {
+            int roundLevels = levels;
+            TreeLayout layout = measure("display", () -> layoutTree(rootNode, metrics, null, roundLevels));
+            showTree(canvas, layout, width, height, first);
+            first = false;
+            if (layout.stubCount == 0)
+                return;
+            // read the rest in one go once the next drawing would be big, guessing that it
+            // grows as much as the last one did
+            if ((long) layout.size * layout.size / previousSize >= PROGRESSIVE_SIZE)
+                break;
+            previousSize = layout.size;
+        }
+        showTree(canvas, measure("display", () -> layoutTree(rootNode, metrics)), width, height, first);
+    }
+    
+    /**
+     * Draws a tree saved with {@link #snapshot(Object, Path)}. The file is mapped into
+     * memory and only the nodes in view are read from it
+     * @param path file of the snapshot
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public void displaySnapshot(Path path) throws IOException {
+        displaySnapshot(path, 1280, 720);
+    }
+    
+    /**
+     * Draws a tree saved with {@link #snapshot(Object, Path)}. The file is mapped into
+     * memory and read like a tree with a lazy depth (see {@link #setLazyDepth(int)}) of
+     * {@link #SNAPSHOT_LEVELS} unless one is set: the top levels are drawn first, and the
+     * levels below each stub are read from the file as it comes into view. Each node is
+     * found through the tables at the end of the file, without reading the nodes before
+     * it, so the time to open a snapshot and the memory it takes depend on the nodes in
+     * view rather than on the size of the tree. Snapshots written by the first version of
+     * the format have no tables and are read whole
+     * @param path   file of the snapshot
+     * @param width  width of the window to display
+     * @param height height of the window to display
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public void displaySnapshot(Path path, int width, int height) throws IOException {
+        SnapshotTree tree;
+        try (SnapshotReader in = new SnapshotReader(path)) {
+            tree = (in.getVersion() == 1) ? null : new SnapshotTree(in);
+        }
+        if (tree != null) {
+            display(tree.getRoot(), width, height);
+            return;
+        }
+        cancelLayout();
+        TreeLayout layout = readSnapshot(path, measureFont());
+        runOnEventThread(() -> openWindow(width, height));
+        showTree(canvas, layout, width, height, true);
+    }
+    
+    /**
+     * Draws many trees in one window
+     * @param rootNodes root nodes of the trees
+     * @see #displayDashboard(List, int, int)
+     */
+    public void displayDashboard(List<?> rootNodes) {
+        displayDashboard(rootNodes, 1280, 720);
+    }
+    
+    /**
+     * Draws many trees in one window, in a grid of cells that scrolls once the cells get
+     * too small. Each cell can be panned and zoomed like the window of
+     * {@link #display(Object)}. This returns once the window is open
+     * <p>
+     * The trees share the measured labels of this viewer and are laid out on the fork
+     * join pool. Their tiles are drawn on a pool of threads shared by all dashboards, into
+     * a single cache that only keeps enough tiles for the cells in view, so memory grows
+     * with the size of the window rather than with the number of trees
+     * @param rootNodes root nodes of the trees
+     * @param width     width of the window to display
+     * @param height    height of the window to display
+     */
+    public void displayDashboard(List<?> rootNodes, int width, int height) {
+        int columns = Math.max(1, (int) Math.ceil(Math.sqrt(rootNodes.size())));
+        int rows = Math.max(1, (rootNodes.size() + columns - 1) / columns);
+        int cellWidth = Math.max(MIN_CELL_WIDTH, width / columns);
+        int cellHeight = Math.max(MIN_CELL_HEIGHT, height / rows);
+        String[] titles = new String[rootNodes.size()];
+        for (int i = 0; i < titles.length; i++)
+            titles[i] = String.valueOf(i);
+        TreeCanvas[] canvases = openGrid(titles, columns, cellWidth, cellHeight, width, height);
+        
+        // lay out the trees, measuring the font once for all of them
+        FontMetrics metrics = measureFont();
+        for (int i = 0; i < canvases.length; i++) {
+            Object rootNode = rootNodes.get(i);
+            TreeCanvas canvas = canvases[i];
+            ForkJoinPool.commonPool().execute(() -> {
+                try {
+                    showTree(canvas, measure("dashboard", () -> layoutTree(rootNode, metrics, null, 0)), cellWidth,
+                        cellHeight, true);
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Draws what changed between two versions of a tree
+     * @param oldRoot root node of the earlier version
+     * @param newRoot root node of the later version
+     * @see #displayDiff(Object, Object, int, int)
+     */
+    public void displayDiff(Object oldRoot, Object newRoot) {
+        displayDiff(oldRoot, newRoot, 1280, 720);
+    }
+    
+    /**
+     * Draws two versions of a tree side by side in one window, with what changed between
+     * them outlined: nodes inserted in green, removed in red and moved in orange. Subtrees
+     * that are the same in both versions are drawn as one shape, so only the changes and
+     * the paths down to them are drawn node by node, and subtrees that moved whole are
+     * outlined as one. A subtree drawn as one shape that has changes below it is outlined
+     * in blue. This returns once the window is open
+     * <p>
+     * Subtrees are matched by a hash of their text and shape computed bottom up, and the
+     * versions are only compared below subtrees that are not found in the other version.
+     * Nodes are matched by text, so nodes with the same text count as the same node. Each
+     * copy of a subtree or a text is matched once, so a subtree that is removed while an
+     * equal one stays is removed rather than moved
+     * @param oldRoot root node of the earlier version
+     * @param newRoot root node of the later version
+     * @param width   width of the window to display
+     * @param height  height of the window to display
+     */
+    public void displayDiff(Object oldRoot, Object newRoot, int width, int height) {
+        int cellWidth = Math.max(MIN_CELL_WIDTH, width / 2);
+        int cellHeight = Math.max(MIN_CELL_HEIGHT, height);
+        TreeCanvas[] canvases = openGrid(new String[] {"Before", "After"}, 2, cellWidth, cellHeight, width, height);
+        worker().execute(() -> {
+            try {
+                FontMetrics metrics = measureFont();
+                RenderMeasurement measurement = instrumented ? new RenderMeasurement("diff") : null;
+                TreeLayout before = layoutTree(oldRoot, metrics, null, 0);
+                TreeLayout after = layoutTree(newRoot, metrics, null, 0);
+                TreeLayout.diff(before, after);
+                if (measurement != null) {
+                    measurement.laidOut(before, after);
+                    measurement.record();
+                }
+                showTree(canvases[0], before, cellWidth, cellHeight, true);
+                showTree(canvases[1], after, cellWidth, cellHeight, true);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+    
+    /**
+     * Opens a window with a grid of canvases, which scrolls if the grid is larger than
+     * the window. The canvases share one tile cache, and draw their tiles on the tile
+     * painter threads
+     * @param titles     title of each canvas
+     * @param columns    number of columns of the grid
+     * @param cellWidth  width of each canvas
+     * @param cellHeight height of each canvas
+     * @param width      width of the window
+     * @param height     height of the window
+     * @return canvases in the grid
+     */
+    private TreeCanvas[] openGrid(String[] titles, int columns, int cellWidth, int cellHeight, int width,
+                                  int height) {
+        int rows = Math.max(1, (titles.length + columns - 1) / columns);
+        TreeCanvas[] canvases = new TreeCanvas[titles.length];
+        runOnEventThread(() -> {
+            TileCache tiles = new TileCache();
+            JPanel grid = new JPanel(new GridLayout(rows, columns, 1, 1));
+            grid.setBackground(Color.GRAY);
+            for (int i = 0; i < canvases.length; i++) {
+                canvases[i] = new TreeCanvas(tiles, tilePainters());
+                canvases[i].setPreferredSize(new Dimension(cellWidth, cellHeight));
+                canvases[i].setDetailWidth(detailWidth);
+                canvases[i].setFastPaint(fastPaint);
+                canvases[i].setInstrumented(instrumented);
+                JPanel cell = new JPanel(new BorderLayout());
+                cell.add(new JLabel(" " + titles[i]), BorderLayout.NORTH);
+                cell.add(canvases[i], BorderLayout.CENTER);
+                grid.add(cell);
+            }
+            JScrollPane scroll = new JScrollPane(grid);
+            scroll.setPreferredSize(new Dimension(width, height));
+            scroll.getVerticalScrollBar().setUnitIncrement(cellHeight / 10);
+            
+            JFrame window = new JFrame("Binary Tree Viewer");
+            window.getContentPane().add(scroll);
+            window.pack();
+            window.setVisible(true);
+            window.toFront();
+            window.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        });
+        return canvases;
+    }
+    
+    /**
+     * @return threads that draw the tiles of dashboards, started on first use
+     */
+    private static synchronized ExecutorService tilePainters() {
+        if (tilePainters == null) {
+            tilePainters = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                daemonThreads("Binary Tree Viewer tiles"));
+        }
+        return tilePainters;
+    }
+    
+    /**
+     * Opens the window to draw trees in. Must be called on the event dispatch thread
+     * @param width  width of the window
+     * @param height height of the window
+     */
+    private void openWindow(int width, int height) {
+        TreeCanvas canvas = activeRendering ? new TreeCanvas(new TileCache(), tilePainters()) : new TreeCanvas();
+        canvas.setPreferredSize(new Dimension(width, height));
+        canvas.setDetailWidth(detailWidth);
+        canvas.setFastPaint(fastPaint);
+        canvas.setInstrumented(instrumented);
+        this.canvas = canvas;
+        
+        JFrame frame = new JFrame("Binary Tree Viewer");
+        if (activeRendering) {
+            canvas.setSize(width, height);
+            ActiveCanvas surface = new ActiveCanvas(canvas);
+            surface.setPreferredSize(new Dimension(width, height));
+            frame.getContentPane().add(surface);
+        }
+        else
+            frame.getContentPane().add(canvas);
+        frame.getContentPane().add(searchBar(canvas), BorderLayout.NORTH);
+        if (analytics)
+            frame.getContentPane().add(shapePanel(canvas), BorderLayout.EAST);
+        frame.pack();
+        frame.setVisible(true);
+        frame.toFront();
+        frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        this.frame = frame;
+    }
+    
+    /**
+     * Creates the box to search the tree of the window with. Each change to the text
+     * searches again, and enter shows the next match
+     * @param canvas canvas of the window
+     * @return search box, with the matches described below it
+     */
+    private JPanel searchBar(TreeCanvas canvas) {
+        JTextField field = new JTextField();
+        field.setToolTipText("Text of the nodes to find, text* to find text starting with it, or a..b to"
+            + " find text or numbers between a and b. Enter shows the next match");
+        field.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                searchLater(field.getText());
+            }
+            
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                searchLater(field.getText());
+            }
+            
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        searchStatus = new JLabel(" ");
+        field.addActionListener(e -> searchStatus.setText(canvas.showMatch()));
+        
+        JPanel bar = new JPanel(new BorderLayout(4, 0));
+        bar.add(new JLabel(" Find"), BorderLayout.WEST);
+        bar.add(field, BorderLayout.CENTER);
+        bar.add(searchStatus, BorderLayout.SOUTH);
+        return bar;
+    }
+    
+    /**
+     * Creates the list that describes the shape of the tree of the window. Selecting a
+     * skewed subtree centers the view on it
+     * @param canvas canvas of the window
+     * @return scrolling list
+     */
+    private JScrollPane shapePanel(TreeCanvas canvas) {
+        shapeList = new JList<>(new DefaultListModel<>());
+        shapeList.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        shapeList.addListSelectionListener(e -> {
+            int line = shapeList.getSelectedIndex();
+            if (!e.getValueIsAdjusting() && line >= 0 && line < shapeRanks.length && shapeRanks[line] != -1)
+                canvas.centerOn(shapeRanks[line]);
+        });
+        JScrollPane scroll = new JScrollPane(shapeList);
+        scroll.setPreferredSize(new Dimension(SHAPE_PANEL_WIDTH, 0));
+        return scroll;
+    }
+    
+    /**
+     * Lists the shape of the tree of the window after it was drawn again. Must be called
+     * on the event dispatch thread
+     * @param canvas canvas the tree was drawn in
+     * @param layout layout of the tree
+     */
+    private void showShape(TreeCanvas canvas, TreeLayout layout) {
+        if (canvas != this.canvas || shapeList == null || layout.shape == null)
+            return;
+        TreeShape shape = layout.shape;
+        DefaultListModel<String> lines = new DefaultListModel<>();
+        for (String line : shape.lines)
+            lines.addElement(line);
+        shapeRanks = shape.lineRanks;
+        shapeList.setModel(lines);
+    }
+    
+    /**
+     * Searches the tree of the window on the update thread, then outlines the matches and
+     * centers the view on the first one. Text typed while a search runs is merged, so
+     * only the latest is searched for
+     * @param query text of the nodes to find
+     */
+    private void searchLater(String query) {
+        if (pendingQuery.getAndSet(query) == null)
+            worker().execute(this::drawSearch);
+    }
+    
+    /**
+     * Searches the tree of the window for the latest text passed to {@link #searchLater(String)}
+     */
+    private void drawSearch() {
+        String query = pendingQuery.getAndSet(null).trim();
+        this.query = query;
+        TreeCanvas canvas = this.canvas;
+        TreeLayout layout = canvas.getTree();
+        if (layout == null)
+            return;
+        try {
+            Search search = layout.search(query);
+            SwingUtilities.invokeLater(() -> {
+                if (canvas.showSearch(layout, search))
+                    searchStatus.setText(canvas.showMatch());
+            });
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Describes the matches of the search of the window, after its tree was drawn again.
+     * Must be called on the event dispatch thread
+     * @param canvas canvas the tree was drawn in
+     */
+    private void showSearchStatus(TreeCanvas canvas) {
+        if (canvas == this.canvas && searchStatus != null)
+            searchStatus.setText(canvas.describeMatch());
+    }
+    
+    /**
+     * Finishes a layout off the event dispatch thread, then draws it in the window
+     * @param canvas canvas to draw in
+     * @param layout layout of the tree
+     * @param width  width of the window
+     * @param height height of the window
+     * @param first  whether to reset the view, or else keep the root where it is
+     */
+    private void showTree(TreeCanvas canvas, TreeLayout layout, int width, int height, boolean first) {
+        checkCancelled(0);
+        layout.setDeltaY(Math.max(Math.min(height / (layout.getMaxDepth() + 1), MAX_HEIGHT_SEPARATION),
+            MIN_HEIGHT_SEPARATION));
+        layout.index();
+        String query = this.query;
+        if (canvas == this.canvas)
+            layout.setSearch(layout.search(query));
+        if (canvas == this.canvas && analytics)
+            layout.analyze();
+        SwingUtilities.invokeLater(() -> {
+            if (first)
+                canvas.setTree(layout, width);
+            else
+                canvas.growTree(layout);
+            showSearchStatus(canvas);
+            showShape(canvas, layout);
+        });
+    }
+    
+    /**
+     * Runs a task on the event dispatch thread and waits for it to finish
+     * @param task task to run
+     */
+    private static void runOnEventThread(Runnable task) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            task.run();
+            return;
+        }
+        try {
+            SwingUtilities.invokeAndWait(task);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+    
+    /**
+     * Draws the tree again in the window opened by {@link #display(Object)}, or opens a
+     * new window if there is none. Call this after each change to watch a tree as it
+     * changes. The view is kept where it is, nodes are matched to the last drawing by
+     * identity, and only the regions that look different are drawn again
+     * <p>
+     * This returns right away. Updates that come in faster than they can be drawn are
+     * merged, so only the latest tree is drawn, and a tree still being drawn by
+     * {@link #display(Object)} is given up
+     * @param rootNode root node of the tree
+     */
+    public void update(Object rootNode) {
+        JFrame frame = this.frame;
+        if (frame == null || !frame.isDisplayable()) {
+            display(rootNode);
+            return;
+        }
+        cancelLayout();
+        root = rootNode;
+        refetch = true;
+        drawLater(rootNode);
+    }
+    
+    /**
+     * Reads the children of stubs that came into view in the window, then draws the tree
+     * again with them
+     * @param stubs nodes of the user's tree whose children have not been read yet
+     */
+    private void expand(List<Object> stubs) {
+        // stubs of a tree that is still being drawn level by level are read anyway
+        if (lazyLevels(root) == 0)
+            return;
+        boolean added = false;
+        for (Object stub : stubs)
+            added |= expanded.add(stub);
+        if (added)
+            drawLater(root);
+    }
+    
+    /**
+     * Lays out a tree on the update thread and draws the changes. Trees that come in
+     * while one is being laid out are merged, so only the latest is drawn
+     * @param rootNode root node of the tree
+     */
+    private void drawLater(Object rootNode) {
+        if (pendingRoot.getAndSet(rootNode) == NO_UPDATE)
+            worker().execute(this::drawUpdate);
+    }
+    
+    /**
+     * @return thread that lays out trees, started on first use
+     */
+    private synchronized ExecutorService worker() {
+        if (updater == null) {
+            ThreadFactory threads = daemonThreads("Binary Tree Viewer update");
+            updater = Executors.newSingleThreadExecutor(runnable -> updateThread = threads.newThread(runnable));
+        }
+        return updater;
+    }
+    
+    /**
+     * Gives up the tree being drawn by {@link #display(Object)}, if any
+     */
+    private void cancelLayout() {
+        Future<?> job = layoutJob;
+        if (job != null && !job.isDone()) {
+            layoutCancelled = true;
+            job.cancel(false);
+        }
+    }
+    
+    /**
+     * Lays out the latest root passed to {@link #update(Object)} and draws the changes
+     */
+    private void drawUpdate() {
+        // a layout cancelled after it finished leaves the flag set
+        layoutCancelled = false;
+        Object rootNode = pendingRoot.getAndSet(NO_UPDATE);
+        if (refetch) {
+            refetch = false;
+            fetched = new IdentityHashMap<>();
+        }
+        TreeCanvas canvas = this.canvas;
+        TreeLayout old = canvas.getTree();
+        try {
+            if (old == null) {
+                // nothing was drawn of the tree passed to display yet
+                drawProgressively(canvas, rootNode, canvas.getWidth(), canvas.getHeight());
+                return;
+            }
+            TreeLayout layout = measure("update", () -> layoutTree(rootNode, measureFont(), old));
+            layout.setDeltaY(old.getDeltaY());
+            layout.setSearch(layout.search(this.query));
+            if (analytics)
+                layout.analyze();
+            int zoom = canvas.getZoom();
+            List<Rectangle2D> regions = layout.changedRegions(old, canvas.getDetailWidth(zoom));
+            SwingUtilities.invokeLater(() -> {
+                // an earlier update may have been shown since old was read, and the tiles
+                // it left are only found by comparing against what is shown now
+                TreeLayout shown = canvas.getTree();
+                canvas.updateTree(layout, (shown == old) ? regions
+                    : layout.changedRegions(shown, canvas.getDetailWidth(zoom)), zoom);
+                showSearchStatus(canvas);
+                showShape(canvas, layout);
+            });
+        }
+        catch (CancellationException e) {
+            // the flag was set for the layout before this one just as it finished, and
+            // the tree that set it is drawn next
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * @param name name of the threads
+     * @return factory of daemon threads, which do not keep the program running
+     */
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    /**
+     * Gets the graphics of an image with the settings used to draw trees
+     * @param image image to draw on
+     * @param fast  whether to draw without antialiasing
+     * @return graphics that you can draw on to affect the image
+     */
+    private static Graphics2D prepareGraphics(BufferedImage image, boolean fast) {
+        Graphics2D g = (Graphics2D) image.getGraphics();
+        if (fast) {
+            // one pixel wide lines, which Java2D draws without building a stroke outline
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+            g.setStroke(new BasicStroke(1));
+            return g;
+        }
+        
+        // anti aliasing
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setStroke(new BasicStroke(1.1f));
+        return g;
+    }
+    
+    /**
+     * Draws the tree to a file without opening a window. Works in headless mode
+     * @param rootNode root node of the tree
+     * @param width    width of the image
+     * @param height   height of the image
+     * @param path     file to write the image to
+     * @param format   format of the image
+     * @throws IOException if the file cannot be written
+     */
+    public void render(Object rootNode, int width, int height, Path path, Format format) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+            render(rootNode, width, height, out, format);
+        }
+    }
+    
+    /**
+     * Draws the tree to a stream without opening a window. Works in headless mode. The
+     * stream is not closed
+     * @param rootNode root node of the tree
+     * @param width    width of the image
+     * @param height   height of the image
+     * @param out      stream to write the image to
+     * @param format   format of the image
+     * @throws IOException if the stream cannot be written
+     */
+    public void render(Object rootNode, int width, int height, OutputStream out, Format format) throws IOException {
+        switch (format) {
+            case PNG:
+                // renders on other threads take turns with the image until it is encoded
+                synchronized (offscreenLock) {
+                    BufferedImage image = offscreenImage(width, height);
+                    Graphics2D g = prepareGraphics(image, fastPaint);
+                    g.setColor(Color.WHITE);
+                    g.fillRect(0, 0, width, height);
+                    drawTree(g, width, height, rootNode);
+                    g.dispose();
+                    
+                    writePng(image, out);
+                }
+                break;
+            case SVG:
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                SvgPainter painter = new SvgPainter(writer, measureFont());
+                painter.begin(width, height);
+                drawTree(painter, painter.getMetrics(), width, height, rootNode);
+                painter.end();
+                writer.flush();
+                break;
+        }
+    }
+    
+    /**
+     * Encodes an image as PNG. The drawing is mostly flat white, so a fast compression
+     * level gives nearly the same size in a fraction of the time
+     * @param image image to encode
+     * @param out   stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    private static void writePng(BufferedImage image, OutputStream out) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.9f);
+        }
+        try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        finally {
+            writer.dispose();
+        }
+    }
+    
+    /**
+     * Draws the whole tree to a PNG file at full size, one pixel per unit of the layout,
+     * with levels {@link #MIN_HEIGHT_SEPARATION} apart. The image is as large as the
+     * tree, which can be hundreds of thousands of pixels wide, so see
+     * {@link #renderFullSize(Object, OutputStream)} for how it is drawn without holding it
+     * in memory
+     * @param rootNode root node of the tree
+     * @param path     file to write the image to
+     * @throws IOException if the file cannot be written
+     */
+    public void renderFullSize(Object rootNode, Path path) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16)) {
+            renderFullSize(rootNode, out);
+        }
+    }
+    
+    /**
+     * Draws the whole tree to a stream as a PNG image at full size. The image is drawn a
+     * strip of rows at a time, each strip in tiles found through the spatial index of the
+     * layout, and each strip is compressed into the stream before the next is drawn, so
+     * only one strip of the image is ever in memory. The whole layout of the tree is,
+     * though, at about 130 bytes per node. Pixels are kept as indexes into a palette: one
+     * bit per pixel if the tree is drawn in black and white, which it is with
+     * {@link #setFastPaint(boolean)} unless it has references or collapsed subtrees, and
+     * one byte per pixel otherwise. The stream is not closed
+     * @param rootNode root node of the tree
+     * @param out      stream to write the image to
+     * @throws IOException if the stream cannot be written
+     * @throws IllegalArgumentException if the image would be too large for a PNG
+     */
+    public void renderFullSize(Object rootNode, OutputStream out) throws IOException {
+        TreeLayout layout = layoutTree(rootNode, measureFont(), null, 0);
+        layout.setDeltaY(MIN_HEIGHT_SEPARATION);
+        Rectangle2D bounds = layout.bounds();
+        double offsetX = FULL_SIZE_MARGIN - bounds.getMinX();
+        double offsetY = FULL_SIZE_MARGIN - bounds.getMinY();
+        long width = (long) Math.ceil(bounds.getWidth()) + 2 * FULL_SIZE_MARGIN;
+        long height = (long) Math.ceil(bounds.getHeight()) + 2 * FULL_SIZE_MARGIN;
+        // subtrees are never narrower than a node, so only wide detail collapses them
+        int bitDepth = (fastPaint && layout.referenceCount == 0 && detailWidth <= MIN_WIDTH) ? 1 : 8;
+        long rowBytes = (width * bitDepth + 7) / 8;
+        if (width > Integer.MAX_VALUE || height > Integer.MAX_VALUE || rowBytes > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Tree is too large to draw at full size: " + width + " by " + height
+                + " pixels");
+        }
+        
+        int stripHeight = (int) Math.max(1, Math.min(MAX_STRIP_HEIGHT, STRIP_BYTES / rowBytes));
+        byte[] strip = new byte[(int) rowBytes * stripHeight];
+        BufferedImage tile = new BufferedImage(STRIP_TILE_WIDTH, stripHeight, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+        int[] palette = (bitDepth == 1) ? new int[] {0x000000, 0xFFFFFF} : PALETTE;
+        try (PngEncoder png = new PngEncoder(out, (int) width, (int) height, bitDepth, palette)) {
+            for (int top = 0; top < height; top += stripHeight) {
+                int rows = (int) Math.min(stripHeight, height - top);
+                for (int left = 0; left < width; left += STRIP_TILE_WIDTH) {
+                    int columns = (int) Math.min(STRIP_TILE_WIDTH, width - left);
+                    // filling the pixels directly skips the antialiased fill
+                    Arrays.fill(pixels, 0, rows * STRIP_TILE_WIDTH, 0xFFFFFF);
+                    Graphics2D g = prepareGraphics(tile, fastPaint);
+                    // lines cut at the side of a tile are not moved to pixel centers, so
+                    // they meet the same line in the next tile
+                    g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+                    // offsets are applied in double precision, so the coordinates Java2D
+                    // sees stay small however wide the image is
+                    double dx = offsetX - left;
+                    double dy = offsetY - top;
+                    layout.draw(new GraphicsPainter(g), dx, dy, -dx - 1, -dy - 1, columns - dx + 1, rows - dy + 1,
+                        detailWidth);
+                    g.dispose();
+                    for (int row = 0; row < rows; row++) {
+                        int pixel = row * STRIP_TILE_WIDTH;
+                        int start = row * (int) rowBytes;
+                        if (bitDepth == 1)
+                            packBits(pixels, pixel, columns, strip, start + left / 8);
+                        else {
+                            // most of a tree is background, which needs no lookup
+                            for (int column = 0; column < columns; column++) {
+                                int rgb = pixels[pixel + column] & 0xFFFFFF;
+                                strip[start + left + column] = (rgb == 0xFFFFFF) ? GRAY_INDEX[255] : paletteIndex(rgb);
+                            }
+                        }
+                    }
+                }
+                for (int row = 0; row < rows; row++)
+                    png.writeRow(strip, row * (int) rowBytes, (int) rowBytes);
+            }
+        }
+    }
+    
+    /**
+     * Packs black and white pixels eight to a byte, leftmost in the highest bit, with 1
+     * for white
+     * @param pixels  RGB pixels
+     * @param offset  index of the first pixel
+     * @param count   number of pixels
+     * @param packed  array to pack into
+     * @param start   index of the first byte to pack into
+     */
+    private static void packBits(int[] pixels, int offset, int count, byte[] packed, int start) {
+        for (int i = 0; i < count; i += 8) {
+            int bits = 0;
+            for (int k = 0; k < 8; k++) {
+                bits <<= 1;
+                if (i + k < count && ((pixels[offset + i + k] >> 8) & 0xFF) >= 128)
+                    bits |= 1;
+            }
+            packed[start + i / 8] = (byte) bits;
+        }
+    }
+    
+    /**
+     * @param rgb color of a pixel
+     * @return index of the nearest color in {@link #PALETTE}
+     */
+    private static byte paletteIndex(int rgb) {
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        if (r == g && g == b)
+            return GRAY_INDEX[r];
+        return (byte) ((r + 25) / 51 * 36 + (g + 25) / 51 * 6 + (b + 25) / 51);
+    }
+    
+    /**
+     * @return colors of the palette of images drawn at full size with antialiasing
+     */
+    private static int[] createPalette() {
+        int[] palette = new int[256];
+        for (int i = 0; i < 216; i++)
+            palette[i] = (i / 36 * 51 << 16) | (i / 6 % 6 * 51 << 8) | (i % 6 * 51);
+        for (int i = 216; i < 256; i++) {
+            // 8 grays between each pair of grays of the cube
+            int gray = (i - 216) / 8 * 51 + ((i - 216) % 8 + 1) * 51 / 9;
+            palette[i] = (gray << 16) | (gray << 8) | gray;
+        }
+        return palette;
+    }
+    
+    /**
+     * @param palette colors of a palette
+     * @return index of the nearest gray of the palette to each gray level
+     */
+    private static byte[] grayIndex(int[] palette) {
+        byte[] index = new byte[256];
+        for (int level = 0; level < 256; level++) {
+            int best = 0;
+            for (int i = 0; i < palette.length; i++) {
+                int gray = palette[i] & 0xFF;
+                if (gray == ((palette[i] >> 8) & 0xFF) && gray == (palette[i] >> 16)
+                    && Math.abs(gray - level) < Math.abs((palette[best] & 0xFF) - level))
+                    best = i;
+            }
+            index[level] = (byte) best;
+        }
+        return index;
+    }
+    
+    /**
+     * Saves the tree to a file that {@link #displaySnapshot(Path)} can draw later, so the
+     * tree can be looked at after the program that built it is gone. The file is written
+     * as the tree is walked, in pre-order:
+     * <ul>
+     * <li>the bytes {@code BTVS} and a version byte</li>
+     * <li>one varint per node: the index of its label shifted left by 2, or 2 if it has a
+     * left child, or 1 if it has a right child. A node with both children is followed by
+     * a second varint, the number of such nodes before it</li>
+     * <li>the labels, each only once, as a varint length and UTF-8 bytes</li>
+     * <li>the offset of each label as a long</li>
+     * <li>the offset of the right child of each node with both children as a long, in the
+     * order of the nodes, so a node can be found without reading its left sibling's
+     * subtree</li>
+     * <li>the number of nodes and the offset of the labels as longs, the number of labels
+     * as an int, the number of nodes with both children as a long, and {@code BTVS}
+     * again</li>
+     * </ul>
+     * Only binary trees can be saved, and only if every node is reached by one path. A
+     * tree guarded by a capture lock (see {@link #setCaptureLock(Lock)}) is copied first,
+     * and written from the copy after the lock is released
+     * @param rootNode root node of the tree
+     * @param path     file to write the snapshot to
+     * @throws IOException if the file cannot be written
+     * @throws IllegalArgumentException if the tree has a cycle or a node shared by two
+     *                                  parents
+     * @throws UnsupportedOperationException if the viewer reads any number of children
+     */
+    public void snapshot(Object rootNode, Path path) throws IOException {
+        if (getChildren != null)
+            throw new UnsupportedOperationException("Snapshots can only be taken of binary trees");
+        Map<Object, Object[]> copy = (captureLock != null || captureStampedLock != null) ? capture(rootNode, 64)
+            : null;
+        IdentityIndex visited = new IdentityIndex((copy == null) ? 64 : copy.size());
+        Map<String, Integer> labelIndex = new HashMap<>();
+        List<String> labels = new ArrayList<>();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path),
+            1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeByte(SNAPSHOT_VERSION);
+            long offset = 5;
+            long count = 0;
+            // offset of the right child of each node with both children, in pre-order
+            long[] rightOffsets = new long[64];
+            int branchCount = 0;
+            
+            // nodes to write, and for right children of nodes with both children, the
+            // number of their parent among those nodes, or else -1
+            Object[] stack = new Object[32];
+            int[] branches = new int[32];
+            int top = 0;
+            if (rootNode != null) {
+                stack[top] = rootNode;
+                branches[top++] = -1;
+            }
+            while (top > 0) {
+                Object node = stack[--top];
+                stack[top] = null;
+                if (branches[top] != -1)
+                    rightOffsets[branches[top]] = offset;
+                Object[] fields = (copy == null) ? null : copy.get(node);
+                Object data = (fields == null) ? getData.apply(node) : fields[0];
+                if (!visited.add(node)) {
+                    throw new IllegalArgumentException("Node " + data
+                        + " is reached twice, through a cycle or two parents, so the tree cannot be saved");
+                }
+                String text = String.valueOf(data);
+                Integer index = labelIndex.get(text);
+                if (index == null) {
+                    index = labels.size();
+                    labelIndex.put(text, index);
+                    labels.add(text);
+                }
+                Object left = (fields == null) ? getLeft.apply(node) : fields[1];
+                Object right = (fields == null) ? getRight.apply(node) : fields[2];
+                offset += writeVarint(out, ((long) index << 2) | (left != null ? 2 : 0) | (right != null ? 1 : 0));
+                count++;
+                int branch = -1;
+                if (left != null && right != null) {
+                    if (branchCount == rightOffsets.length)
+                        rightOffsets = Arrays.copyOf(rightOffsets, branchCount * 2);
+                    branch = branchCount++;
+                    offset += writeVarint(out, branch);
+                }
+                
+                if (top + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                    branches = Arrays.copyOf(branches, stack.length);
+                }
+                if (right != null) {
+                    stack[top] = right;
+                    branches[top++] = branch;
+                }
+                if (left != null) {
+                    stack[top] = left;
+                    branches[top++] = -1;
+                }
+            }
+            
+            long labelOffset = offset;
+            long[] labelOffsets = new long[labels.size()];
+            for (int i = 0; i < labels.size(); i++) {
+                byte[] bytes = labels.get(i).getBytes(StandardCharsets.UTF_8);
+                labelOffsets[i] = offset;
+                offset += writeVarint(out, bytes.length) + bytes.length;
+                out.write(bytes);
+            }
+            for (long labelStart : labelOffsets)
+                out.writeLong(labelStart);
+            for (int i = 0; i < branchCount; i++)
+                out.writeLong(rightOffsets[i]);
+            out.writeLong(count);
+            out.writeLong(labelOffset);
+            out.writeInt(labels.size());
+            out.writeLong(branchCount);
+            out.writeInt(SNAPSHOT_MAGIC);
+        }
+    }
+    
+    /**
+     * Writes an unsigned number 7 bits at a time, lowest first, with the high bit set on
+     * all but the last byte
+     * @param out   stream to write to
+     * @param value number to write
+     * @return number of bytes written
+     * @throws IOException if the stream cannot be written
+     */
+    private static int writeVarint(OutputStream out, long value) throws IOException {
+        int bytes = 1;
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+            bytes++;
+        }
+        out.write((int) value);
+        return bytes;
+    }
+    
+    /**
+     * Lays out a whole tree saved with {@link #snapshot(Object, Path)}. The records are in
+     * pre-order, and each node is added to the layout once its left subtree is done,
+     * like {@link #parseTree}
+     * @param path    file of the snapshot
+     * @param metrics metrics of the font to calculate width of data
+     * @return layout of the tree, without the distance between depths
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    private TreeLayout readSnapshot(Path path, FontMetrics metrics) throws IOException {
+        LabelCache labelCache = labelCaches.computeIfAbsent(
+            List.of(metrics.getFont(), metrics.getFontRenderContext()), key -> new LabelCache(metrics));
+        try (SnapshotReader in = new SnapshotReader(path)) {
+            if (in.getNodeCount() > Integer.MAX_VALUE - 8)
+                throw new IOException("Snapshot has too many nodes to draw: " + in.getNodeCount());
+            Label[] labels = new Label[in.getLabelCount()];
+            in.seek(in.getLabelOffset());
+            for (int i = 0; i < labels.length; i++) {
+                byte[] bytes = new byte[in.readLabelLength()];
+                in.readFully(bytes);
+                labels[i] = labelCache.get(new String(bytes, StandardCharsets.UTF_8), null);
+            }
+            
+            TreeLayout layout = new TreeLayout((int) in.getNodeCount());
+            in.seek(5);
+            // nodes whose left subtree is being read, with their depths and whether they
+            // have a right child
+            Label[] stack = new Label[32];
+            int[] depths = new int[32];
+            boolean[] hasRight = new boolean[32];
+            int top = 0;
+            int maxDepth = 1;
+            // depth of the next node, or 0 after the end of the tree
+            int depth = 1;
+            for (long n = in.getNodeCount(); n > 0; n--) {
+                long record = in.readVarint();
+                if ((record >>> 2) >= labels.length)
+                    throw new IOException("Snapshot label index out of range: " + (record >>> 2));
+                if (depth == 0)
+                    throw new IOException("Snapshot has nodes after the end of the tree");
+                Label label = labels[(int) (record >>> 2)];
+                if ((record & 3) == 3 && in.getVersion() > 1)
+                    in.readVarint();
+                maxDepth = Math.max(maxDepth, depth);
+                if ((record & 2) != 0) {
+                    if (top == stack.length) {
+                        stack = Arrays.copyOf(stack, top * 2);
+                        depths = Arrays.copyOf(depths, top * 2);
+                        hasRight = Arrays.copyOf(hasRight, top * 2);
+                    }
+                    stack[top] = label;
+                    depths[top] = depth;
+                    hasRight[top++] = (record & 1) != 0;
+                    depth++;
+                    continue;
+                }
+                
+                // no left subtree, so add the node and any ancestors whose left subtree is done
+                layout.add(label, depth, false, null);
+                boolean right = (record & 1) != 0;
+                while (!right && top > 0) {
+                    depth = depths[--top];
+                    layout.add(stack[top], depth, false, null);
+                    right = hasRight[top];
+                }
+                depth = right ? depth + 1 : 0;
+            }
+            if (layout.size != in.getNodeCount() || top != 0)
+                throw new IOException("Snapshot is truncated");
+            
+            layout.setMaxDepth(maxDepth);
+            if (layoutStrategy == LayoutStrategy.TIDY)
+                layout.layoutTidy((layout.size > 20) ? 1 : 1.5);
+            else
+                layout.layoutX((layout.size > 20) ? 1 : 1.5);
+            return layout;
+        }
+    }
+    
+    /**
+     * Ways of placing the nodes of a tree side by side
+     */
+    public enum LayoutStrategy {
+        /**
+         * Every node gets its own column, in order from left to right. Simple to read,
+         * but the tree is as wide as all its nodes put together
+         */
+        IN_ORDER,
+        /**
+         * Subtrees are packed as tightly as their outlines allow, with each parent
+         * centered above its children (Reingold-Tilford). Bushy trees take up a small
+         * fraction of the width
+         */
+        TIDY
+    }
+    
+    /**
+     * Image formats the tree can be rendered to
+     */
+    public enum Format {
+        /**
+         * Raster image drawn with the same settings as the window
+         */
+        PNG,
+        /**
+         * Vector image, written while the tree is drawn
+         */
+        SVG
+    }
+    
+    /**
+     * Gets an image to render offscreen, reusing the last one if it has the same size.
+     * Must be called while holding {@link #offscreenLock}
+     * @param width  width of image
+     * @param height height of image
+     * @return image to draw on
+     */
+    private BufferedImage offscreenImage(int width, int height) {
+        if (offscreen == null || offscreen.getWidth() != width || offscreen.getHeight() != height)
+            offscreen = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        return offscreen;
+    }
+    
+    /**
+     * Gets the metrics of the font trees are drawn with, without needing a window
+     * @return font metrics
+     */
+    private FontMetrics measureFont() {
+        Graphics2D g = prepareGraphics(FONT_IMAGE, false);
+        FontMetrics metrics = g.getFontMetrics();
+        g.dispose();
+        return metrics;
+    }
+    
+    /**
+     * Draws the edges and the nodes of the tree
+     * @param g        graphics to draw to
+     * @param width    width of graphics
+     * @param height   height of graphics
+     * @param rootNode root node of tree
+     */
+    private void drawTree(Graphics2D g, int width, int height, Object rootNode) {
+        paintTask(g, width, height, rootNode).run();
+    }
+    
+    /**
+     * Draws the edges and the nodes of the tree that are within the drawing
+     * @param painter  painter to draw with
+     * @param metrics  metrics of the font to calculate width of data
+     * @param width    width of drawing
+     * @param height   height of drawing
+     * @param rootNode root node of tree
+     */
+    private void drawTree(TreePainter painter, FontMetrics metrics, int width, int height, Object rootNode) {
+        drawTask(painter, metrics, width, height, rootNode).run();
+    }
+    
+    /**
+     * Lays out the tree to fit the drawing
+     * @param painter  painter to draw with
+     * @param metrics  metrics of the font to calculate width of data
+     * @param width    width of drawing
+     * @param height   height of drawing
+     * @param rootNode root node of tree
+     * @return task that draws the edges and the nodes of the layout
+     */
+    private Runnable drawTask(TreePainter painter, FontMetrics metrics, int width, int height, Object rootNode) {
+        RenderMeasurement measurement = instrumented ? new RenderMeasurement("render") : null;
+        TreeLayout layout = layoutTree(rootNode, metrics);
+        layout.setDeltaY(Math.min(height / (layout.getMaxDepth() + 1), MAX_HEIGHT_SEPARATION));
+        double offsetX = layout.centerOffset(width);
+        double detailWidth = this.detailWidth;
+        Runnable draw = () -> layout.draw(painter, offsetX, 0, -offsetX, 0, width - offsetX, height, detailWidth);
+        if (measurement == null)
+            return draw;
+        measurement.laidOut(layout);
+        return () -> measurement.paint(draw);
+    }
+    
+    /**
+     * Lays out a tree to show in a window, measuring the layout if the viewer is
+     * instrumented. The window measures its tiles as it paints them, so the render is
+     * recorded without a paint time
+     * @param kind   what the tree is laid out for
+     * @param layout task that lays out the tree
+     * @return layout of the tree
+     */
+    private TreeLayout measure(String kind, Supplier<TreeLayout> layout) {
+        if (!instrumented)
+            return layout.get();
+        RenderMeasurement measurement = new RenderMeasurement(kind);
+        TreeLayout result = layout.get();
+        measurement.laidOut(result);
+        measurement.record();
+        return result;
+    }
+    
+    /**
+     * Measures a render of an instrumented viewer, from the start of the layout to the
+     * end of the first paint, then records it in {@link RenderStats} and as a
+     * {@link RenderEvent}
+     */
+    private class RenderMeasurement {
+        private final RenderEvent event = new RenderEvent();
+        private final long startCalls = accessorCalls.sum();
+        private final long startAccessorTime = accessorTime.sum();
+        private final long startCaptureTime = captureTime.sum();
+        private final long startTornCaptures = tornCaptures.sum();
+        private final long startBytes = allocatedBytes();
+        private final long start;
+        private boolean recorded;
+        
+        /**
+         * @param kind what the tree is rendered for, such as {@code "render"} or
+         *             {@code "update"}
+         */
+        public RenderMeasurement(String kind) {
+            event.kind = kind;
+            event.begin();
+            start = System.nanoTime();
+        }
+        
+        /**
+         * Records the layout phase
+         * @param layouts layouts of the trees rendered together
+         */
+        public void laidOut(TreeLayout... layouts) {
+            event.layoutTime = System.nanoTime() - start;
+            for (TreeLayout layout : layouts) {
+                event.nodes += layout.size;
+                if (layout.size > 0)
+                    event.maxDepth = Math.max(event.maxDepth, layout.getMaxDepth());
+            }
+            event.accessorCalls = accessorCalls.sum() - startCalls;
+            event.accessorTime = accessorTime.sum() - startAccessorTime;
+            event.captureTime = captureTime.sum() - startCaptureTime;
+            event.tornCaptures = tornCaptures.sum() - startTornCaptures;
+        }
+        
+        /**
+         * Paints the tree, recording the paint phase the first time
+         * @param draw task that paints the tree
+         */
+        public void paint(Runnable draw) {
+            if (recorded) {
+                draw.run();
+                return;
+            }
+            long paintStart = System.nanoTime();
+            draw.run();
+            event.paintTime = System.nanoTime() - paintStart;
+            record();
+        }
+        
+        /**
+         * Records the render. Renders in a window are recorded once laid out, and their
+         * tiles are recorded as they are painted
+         */
+        public void record() {
+            event.allocated = allocatedBytes() - startBytes;
+            event.commit();
+            RenderStats.INSTANCE.add(event);
+            recorded = true;
+        }
+    }
+    
+    /**
+     * @return bytes allocated by the current thread so far, or 0 if the JVM does not
+     *         count them. Layouts done in parallel also allocate on the threads of the
+     *         fork join pool, and windows on their tile painters, which are not counted
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+    
+    /**
+     * Flight recorder event of one render of a tree, emitted by instrumented viewers. See
+     * {@link #setInstrumented(boolean)}
+     */
+    @Name("BinaryTreeViewer.Render")
+    @jdk.jfr.Label("Render Tree")
+    @Category("Binary Tree Viewer")
+    @StackTrace(false)
+    private static class RenderEvent extends Event {
+        @jdk.jfr.Label("Kind")
+        private String kind;
+        @jdk.jfr.Label("Nodes")
+        private int nodes;
+        @jdk.jfr.Label("Max Depth")
+        private int maxDepth;
+        @jdk.jfr.Label("Accessor Calls")
+        private long accessorCalls;
+        @jdk.jfr.Label("Accessor Time")
+        @Timespan
+        private long accessorTime;
+        @jdk.jfr.Label("Capture Time")
+        @Timespan
+        private long captureTime;
+        @jdk.jfr.Label("Torn Captures")
+        private long tornCaptures;
+        @jdk.jfr.Label("Layout Time")
+        @Timespan
+        private long layoutTime;
+        @jdk.jfr.Label("Paint Time")
+        @Timespan
+        private long paintTime;
+        @jdk.jfr.Label("Allocated")
+        @DataAmount
+        private long allocated;
+    }
+    
+    /**
+     * Flight recorder event of one tile painted in a window of an instrumented viewer
+     */
+    @Name("BinaryTreeViewer.PaintTile")
+    @jdk.jfr.Label("Paint Tile")
+    @Category("Binary Tree Viewer")
+    @StackTrace(false)
+    private static class TileEvent extends Event {
+        @jdk.jfr.Label("Zoom")
+        private int zoom;
+        @jdk.jfr.Label("Column")
+        private int x;
+        @jdk.jfr.Label("Row")
+        private int y;
+    }
+    
+    /**
+     * Totals of the renders of all instrumented viewers, readable through JMX as
+     * {@code BinaryTreeViewer:type=RenderStats}. Times are in nanoseconds, and bytes are
+     * counted on the thread that laid out the tree, leaving out the threads of parallel
+     * layouts and tile painters
+     */
+    public interface RenderStatsMXBean {
+        long getRenderCount();
+        
+        long getNodeCount();
+        
+        /**
+         * @return deepest depth of any tree rendered
+         */
+        long getMaxDepth();
+        
+        long getAccessorCalls();
+        
+        long getAccessorTime();
+        
+        /**
+         * @return time spent copying trees read under a capture lock, which is part of
+         *         the layout time
+         */
+        long getCaptureTime();
+        
+        /**
+         * @return copies of trees read without locking that were thrown away because a
+         *         writer changed the tree meanwhile
+         */
+        long getTornCaptures();
+        
+        long getLayoutTime();
+        
+        /**
+         * @return time spent painting, which for windows is the time spent on their
+         *         tiles
+         */
+        long getPaintTime();
+        
+        /**
+         * @return tiles painted in windows
+         */
+        long getTileCount();
+        
+        long getAllocatedBytes();
+        
+        /**
+         * Sets all totals back to 0
+         */
+        void reset();
+    }
+    
+    /**
+     * Totals of the renders of all instrumented viewers, registered with the platform
+     * MBean server when the first render is recorded
+     */
+    private static class RenderStats implements RenderStatsMXBean {
+        private static final RenderStats INSTANCE = register(new RenderStats());
+        
+        private final LongAdder renders = new LongAdder();
+        private final LongAdder nodes = new LongAdder();
+        private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+        private final LongAdder accessorCalls = new LongAdder();
+        private final LongAdder accessorTime = new LongAdder();
+        private final LongAdder captureTime = new LongAdder();
+        private final LongAdder tornCaptures = new LongAdder();
+        private final LongAdder layoutTime = new LongAdder();
+        private final LongAdder paintTime = new LongAdder();
+        private final LongAdder tiles = new LongAdder();
+        private final LongAdder allocated = new LongAdder();
+        
+        /**
+         * @param stats stats to register
+         * @return stats
+         */
+        private static RenderStats register(RenderStats stats) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(stats,
+                    new ObjectName("BinaryTreeViewer:type=RenderStats"));
+            }
+            catch (JMException e) {
+                // another copy of the viewer class registered first, so only count
+            }
+            return stats;
+        }
+        
+        /**
+         * Adds a render to the totals
+         * @param event measurements of the render
+         */
+        public void add(RenderEvent event) {
+            renders.increment();
+            nodes.add(event.nodes);
+            maxDepth.accumulate(event.maxDepth);
+            accessorCalls.add(event.accessorCalls);
+            accessorTime.add(event.accessorTime);
+            captureTime.add(event.captureTime);
+            tornCaptures.add(event.tornCaptures);
+            layoutTime.add(event.layoutTime);
+            paintTime.add(event.paintTime);
+            allocated.add(event.allocated);
+        }
+        
+        /**
+         * Adds a tile painted in a window to the totals
+         * @param time nanoseconds spent painting it
+         */
+        public void addTile(long time) {
+            tiles.increment();
+            paintTime.add(time);
+        }
+        
+        @Override
+        public long getRenderCount() {
+            return renders.sum();
+        }
+        
+        @Override
+        public long getNodeCount() {
+            return nodes.sum();
+        }
+        
+        @Override
+        public long getMaxDepth() {
+            return maxDepth.get();
+        }
+        
+        @Override
+        public long getAccessorCalls() {
+            return accessorCalls.sum();
+        }
+        
+        @Override
+        public long getAccessorTime() {
+            return accessorTime.sum();
+        }
+        
+        @Override
+        public long getCaptureTime() {
+            return captureTime.sum();
+        }
+        
+        @Override
+        public long getTornCaptures() {
+            return tornCaptures.sum();
+        }
+        
+        @Override
+        public long getLayoutTime() {
+            return layoutTime.sum();
+        }
+        
+        @Override
+        public long getPaintTime() {
+            return paintTime.sum();
+        }
+        
+        @Override
+        public long getTileCount() {
+            return tiles.sum();
+        }
+        
+        @Override
+        public long getAllocatedBytes() {
+            return allocated.sum();
+        }
+        
+        @Override
+        public void reset() {
+            renders.reset();
+            nodes.reset();
+            maxDepth.reset();
+            accessorCalls.reset();
+            accessorTime.reset();
+            captureTime.reset();
+            tornCaptures.reset();
+            layoutTime.reset();
+            paintTime.reset();
+            tiles.reset();
+            allocated.reset();
+        }
+    }
+    
+    // the phases of drawing a tree, which BTVBenchmark times separately
+    
+    /**
+     * Reads the data and the children of every node without laying out the tree
+     * @param rootNode root node of tree
+     * @return number of nodes
+     */
+    int walkTree(Object rootNode) {
+        Object[] stack = new Object[32];
+        int top = 0;
+        int count = 0;
+        if (rootNode != null)
+            stack[top++] = rootNode;
+        while (top > 0) {
+            Object node = stack[--top];
+            stack[top] = null;
+            getData.apply(node);
+            count++;
+            Object left = getLeft.apply(node);
+            Object right = getRight.apply(node);
+            if (top + 2 > stack.length)
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            if (right != null)
+                stack[top++] = right;
+            if (left != null)
+                stack[top++] = left;
+        }
+        return count;
+    }
+    
+    /**
+     * Lays out the tree and measures the text of every node
+     * @param rootNode root node of tree
+     * @return number of nodes
+     */
+    int layoutNodes(Object rootNode) {
+        return layoutTree(rootNode, measureFont()).size;
+    }
+    
+    /**
+     * Lays out the tree to fit a graphics
+     * @param g        graphics to draw to
+     * @param width    width of graphics
+     * @param height   height of graphics
+     * @param rootNode root node of tree
+     * @return task that draws the edges and the nodes of the layout to the graphics
+     */
+    Runnable paintTask(Graphics2D g, int width, int height, Object rootNode) {
+        return drawTask(new GraphicsPainter(g), g.getFontMetrics(), width, height, rootNode);
+    }
+    
+    /**
+     * Lays out the tree and scales it down to fit a graphics, like a window zoomed out
+     * to show the whole tree
+     * @param g        graphics to draw to
+     * @param width    width of graphics
+     * @param height   height of graphics
+     * @param rootNode root node of tree
+     * @return task that draws the whole layout to the graphics a tile at a time, like
+     *         the tiles of a window
+     */
+    Runnable overviewTask(Graphics2D g, int width, int height, Object rootNode) {
+        TreeLayout layout = layoutTree(rootNode, g.getFontMetrics());
+        layout.setDeltaY(Math.max(Math.min(height / (layout.getMaxDepth() + 1), MAX_HEIGHT_SEPARATION),
+            MIN_HEIGHT_SEPARATION));
+        Rectangle2D bounds = layout.bounds();
+        double scale = Math.min(1, Math.min(width / Math.max(1, bounds.getWidth()),
+            height / Math.max(1, bounds.getHeight())));
+        double detailWidth = this.detailWidth / scale;
+        int tileSize = TreeCanvas.TILE_SIZE;
+        return () -> {
+            for (int top = 0; top < height; top += tileSize) {
+                for (int left = 0; left < width; left += tileSize) {
+                    Graphics2D tile = (Graphics2D) g.create(left, top, tileSize, tileSize);
+                    tile.scale(scale, scale);
+                    double minX = bounds.getMinX() + left / scale;
+                    double minY = bounds.getMinY() + top / scale;
+                    tile.translate(-minX, -minY);
+                    double size = tileSize / scale;
+                    layout.draw(new GraphicsPainter(tile), 0, 0, minX - 1, minY - 1, minX + size + 1,
+                        minY + size + 1, detailWidth);
+                    tile.dispose();
+                }
+            }
+        };
+    }
+    
+    // what BTVTester checks without opening a window
+    
+    /**
+     * Compares two versions of a tree
+     * @param oldRoot root node of the earlier version
+     * @param newRoot root node of the later version
+     * @return how each node of each version changed, from left to right, or null for
+     *         each node that did not change
+     */
+    String[][] diffChanges(Object oldRoot, Object newRoot) {
+        FontMetrics metrics = measureFont();
+        TreeLayout before = layoutTree(oldRoot, metrics);
+        TreeLayout after = layoutTree(newRoot, metrics);
+        TreeLayout.diff(before, after);
+        String[][] changes = new String[2][];
+        TreeLayout[] versions = {before, after};
+        for (int v = 0; v < 2; v++) {
+            TreeLayout layout = versions[v];
+            changes[v] = new String[layout.size];
+            for (int i = 0; i < layout.size; i++) {
+                Change change = layout.change(i);
+                changes[v][i] = (change == null) ? null : change.description;
+            }
+        }
+        return changes;
+    }
+    
+    /**
+     * Lays out a tree as the viewer is set to
+     * @param rootNode root node of tree
+     * @return text, x position and depth of each node from left to right
+     */
+    String[] layoutText(Object rootNode) {
+        return layoutText(layoutTree(rootNode, measureFont()));
+    }
+    
+    /**
+     * Lays out a tree saved with {@link #snapshot(Object, Path)}
+     * @param path file of the snapshot
+     * @param lazy whether to read the nodes through the tables of the file, as a window
+     *             does, rather than all in order
+     * @return text, x position and depth of each node from left to right
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    String[] snapshotText(Path path, boolean lazy) throws IOException {
+        if (!lazy)
+            return layoutText(readSnapshot(path, measureFont()));
+        SnapshotTree tree;
+        try (SnapshotReader in = new SnapshotReader(path)) {
+            tree = new SnapshotTree(in);
+        }
+        return layoutText(layoutTree(tree.getRoot(), measureFont(), null, Integer.MAX_VALUE));
+    }
+    
+    /**
+     * Searches the text of a tree
+     * @param rootNode root node of tree
+     * @param query    text to find, see {@link LabelIndex#find(String)}
+     * @return text of the matching nodes from left to right
+     */
+    String[] findText(Object rootNode, String query) {
+        TreeLayout layout = layoutTree(rootNode, measureFont());
+        int[] ranks = new LabelIndex(layout.labels, layout.size).find(query);
+        String[] found = new String[ranks.length];
+        for (int i = 0; i < ranks.length; i++)
+            found[i] = layout.labels[ranks[i]].text;
+        return found;
+    }
+    
+    /**
+     * @param layout layout of a tree
+     * @return text, x position and depth of each node from left to right
+     */
+    private static String[] layoutText(TreeLayout layout) {
+        String[] nodes = new String[layout.size];
+        for (int i = 0; i < layout.size; i++)
+            nodes[i] = layout.labels[i].text + " " + layout.x[i] + " " + layout.depth[i];
+        return nodes;
+    }
+    
+    /**
+     * Calculates the spacing of the tree
+     * @param rootNode root node of tree
+     * @param metrics  metrics of the font to calculate width of data
+     * @return layout of the tree, without the distance between depths
+     */
+    private TreeLayout layoutTree(Object rootNode, FontMetrics metrics) {
+        return layoutTree(rootNode, metrics, null);
+    }
+    
+    /**
+     * Calculates the spacing of the tree
+     * @param rootNode root node of tree
+     * @param metrics  metrics of the font to calculate width of data
+     * @param previous earlier layout of the same tree to reuse unchanged nodes from, or null
+     * @return layout of the tree, without the distance between depths
+     */
+    private TreeLayout layoutTree(Object rootNode, FontMetrics metrics, TreeLayout previous) {
+        return layoutTree(rootNode, metrics, previous, lazyLevels(rootNode));
+    }
+    
+    /**
+     * @param rootNode root node of tree
+     * @return number of levels to read at a time below the root and below each stub that
+     *         comes into view, or 0 to read the whole tree
+     */
+    private int lazyLevels(Object rootNode) {
+        return (lazyDepth == 0 && rootNode instanceof SnapshotNode) ? SNAPSHOT_LEVELS : lazyDepth;
+    }
+    
+    /**
+     * Calculates the spacing of the top levels of the tree
+     * @param rootNode root node of tree
+     * @param metrics  metrics of the font to calculate width of data
+     * @param previous earlier layout of the same tree to reuse unchanged nodes from, or null
+     * @param levels   number of levels to read below the root and below each stub that
+     *                 came into view, or 0 to read the whole tree
+     * @return layout of the tree, without the distance between depths
+     */
+    private TreeLayout layoutTree(Object rootNode, FontMetrics metrics, TreeLayout previous, int levels) {
+        LabelCache labels = labelCaches.computeIfAbsent(List.of(metrics.getFont(), metrics.getFontRenderContext()),
+            key -> new LabelCache(metrics));
+        TreeLayout layout = null;
+        // nodes are only kept for later layouts of a lazy tree
+        Map<Object, Object[]> fetched = (levels == 0) ? null : (lazyLevels(rootNode) > 0) ? this.fetched
+            : new IdentityHashMap<>();
+        // snapshots are read through their own nodes, whatever the viewer is set to read
+        boolean snapshot = rootNode instanceof SnapshotNode;
+        // a tree guarded by a lock is copied whole, then laid out from the copy like a lazy
+        // tree whose nodes were all read. Trees read a few levels at a time only have the
+        // levels to read read under the lock, and are laid out from them after it
+        if ((captureLock != null || captureStampedLock != null) && !snapshot) {
+            if (levels == 0) {
+                fetched = capture(rootNode, (previous == null) ? 64 : previous.size);
+                levels = Integer.MAX_VALUE;
+            }
+            else {
+                long start = System.nanoTime();
+                long stamp = lockTree();
+                try {
+                    fetchLevels(rootNode, levels, fetched);
+                }
+                finally {
+                    unlockTree(stamp);
+                    captureTime.add(System.nanoTime() - start);
+                }
+            }
+        }
+        if (getChildren != null && !snapshot) {
+            layout = new TreeLayout();
+            layout.setMaxDepth(parseChildren(layout, rootNode, levels, fetched, labels, previous));
+            layout.layoutX((layout.size > 20) ? 1 : 1.5);
+        }
+        else if (levels > 0) {
+            layout = new TreeLayout();
+            layout.setMaxDepth(parseTreeLazy(layout, rootNode, levels, fetched, labels, previous));
+            layout.layoutX((layout.size > 20) ? 1 : 1.5);
+        }
+        if (layout == null && parallel && rootNode != null)
+            layout = layoutTreeParallel(rootNode, labels, previous);
+        if (layout == null) {
+            IdentityIndex visited = new IdentityIndex((previous == null) ? 64 : previous.size);
+            layout = new TreeLayout();
+            layout.setMaxDepth(parseTree(layout, rootNode, 1, labels, previous, visited::add));
+            layout.layoutX((layout.size > 20) ? 1 : 1.5);
+        }
+        if (layoutStrategy == LayoutStrategy.TIDY)
+            layout.layoutTidy((layout.size > 20) ? 1 : 1.5);
+        return layout;
+    }
+    
+    /**
+     * Calculates the spacing of the tree on the common fork join pool. The subtrees below
+     * the top few levels are walked and measured concurrently, then copied into place
+     * side by side, also concurrently. The layout is the same as the serial one: widths
+     * are whole or half numbers, so the x positions add up exactly in any order. The
+     * tasks share the nodes visited, and if a node is reached twice, which of its paths
+     * is walked depends on timing, so the tree is left to the serial layout
+     * @param rootNode root node of tree
+     * @param labels   labels measured in the font to draw with
+     * @param previous earlier layout of the same tree to reuse unchanged nodes from, or null
+     * @return layout of the tree without the distance between depths, or null if the tree
+     *         has a cycle or a node shared by two parents
+     */
+    private TreeLayout layoutTreeParallel(Object rootNode, LabelCache labels, TreeLayout previous) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        if (previous != null)
+            previous.rankOf(rootNode);
+        int splitDepth = 1 + 32 - Integer.numberOfLeadingZeros(pool.getParallelism() * 8);
+        SharedIdentitySet visited = new SharedIdentitySet(pool.getParallelism() * 4,
+            (previous == null) ? 64 : previous.size);
+        Part root = pool.invoke(new PartTask(rootNode, 1, splitDepth, labels, previous, visited));
+        if (visited.isRepeated())
+            return null;
+        
+        // ranks and x positions of the parts, from left to right
+        TreeLayout layout = new TreeLayout(root.size);
+        List<Part> fragments = new ArrayList<>();
+        double deltaX = (root.size > 20) ? 1 : 1.5;
+        double startX = 0;
+        Part[] stack = new Part[2 * splitDepth + 2];
+        int top = 0;
+        for (Part part = root; part != null || top > 0; ) {
+            if (part != null && part.fragment == null) {
+                stack[top++] = part;
+                part = part.left;
+                continue;
+            }
+            if (part == null) {
+                // left side of a spine node is done
+                part = stack[--top];
+                layout.labels[layout.size] = part.label;
+                layout.depth[layout.size] = part.depth;
+                layout.sources[layout.size] = part.source;
+                layout.x[layout.size++] = startX;
+                startX += part.label.width * deltaX;
+                part = part.right;
+                continue;
+            }
+            part.offset = layout.size;
+            part.startX = startX;
+            fragments.add(part);
+            layout.size += part.size;
+            startX += part.width * deltaX;
+            part = null;
+        }
+        
+        int[] fragmentRoots = new int[fragments.size()];
+        List<ForkJoinTask<?>> copies = new ArrayList<>();
+        for (int f = 0; f < fragments.size(); f++) {
+            Part part = fragments.get(f);
+            fragmentRoots[f] = part.offset + part.fragment.root;
+            copies.add(ForkJoinTask.adapt(() -> part.copyTo(layout, deltaX)));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(copies)));
+        
+        layout.setMaxDepth(root.maxDepth);
+        layout.setParallel(pool, fragmentRoots);
+        return layout;
+    }
+    
+    /**
+     * Reads a snapshot through windows of the file mapped into memory, so files larger
+     * than a mapped buffer can be read
+     */
+    private static class SnapshotReader implements AutoCloseable {
+        /**
+         * Most bytes of the file mapped at once
+         */
+        private static final int WINDOW_SIZE = 1 << 28;
+        
+        private final FileChannel channel;
+        private final long fileSize;
+        private MappedByteBuffer window;
+        // offset in the file of the start of the window
+        private long windowStart;
+        
+        private final int version;
+        // from the end of the file
+        private final long nodeCount;
+        private final long labelOffset;
+        private final int labelCount;
+        private final long branchCount;
+        // offsets of the tables of label offsets and right child offsets, and the end of
+        // the labels. Files of version 1 have no tables, so both are at the end of the
+        // labels
+        private final long labelTableOffset;
+        private final long branchTableOffset;
+        
+        public SnapshotReader(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                fileSize = channel.size();
+                if (fileSize < 5 + SNAPSHOT_TRAILER_1)
+                    throw new IOException("Not a snapshot: " + path);
+                seek(0);
+                if (window.getInt() != SNAPSHOT_MAGIC)
+                    throw new IOException("Not a snapshot: " + path);
+                version = window.get();
+                if (version != 1 && version != SNAPSHOT_VERSION)
+                    throw new IOException("Snapshot has an unknown version " + version + ": " + path);
+                long trailer = (version == 1) ? SNAPSHOT_TRAILER_1 : SNAPSHOT_TRAILER;
+                if (fileSize < 5 + trailer)
+                    throw new IOException("Snapshot is truncated: " + path);
+                seek(fileSize - trailer);
+                nodeCount = window.getLong();
+                labelOffset = window.getLong();
+                labelCount = window.getInt();
+                branchCount = (version == 1) ? 0 : window.getLong();
+                if (window.getInt() != SNAPSHOT_MAGIC || labelOffset < 5 || labelOffset > fileSize - trailer)
+                    throw new IOException("Snapshot is truncated: " + path);
+                // every node and every label takes at least a byte, and every entry of the
+                // tables eight, so counts larger than their part of the file are corrupt,
+                // and are caught before anything is allocated for them
+                long labelBytes = (version == 1) ? 1 : 9;
+                long rest = fileSize - trailer - labelOffset;
+                if (nodeCount < 0 || nodeCount > labelOffset - 5 || labelCount < 0 || branchCount < 0
+                    || branchCount > nodeCount || labelCount > rest / labelBytes
+                    || branchCount > (rest - labelBytes * labelCount) / 8)
+                    throw new IOException("Snapshot has corrupt counts: " + path);
+                branchTableOffset = fileSize - trailer - 8 * branchCount;
+                labelTableOffset = (version == 1) ? branchTableOffset : branchTableOffset - 8L * labelCount;
+            }
+            catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        
+        /**
+         * Moves to an offset in the file
+         * @param offset offset in the file
+         * @throws IOException if the file cannot be mapped
+         */
+        public void seek(long offset) throws IOException {
+            windowStart = offset;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW_SIZE, fileSize - offset));
+        }
+        
+        /**
+         * @return next byte of the file
+         * @throws IOException if the file ends
+         */
+        public int readByte() throws IOException {
+            if (!window.hasRemaining()) {
+                if (windowStart + window.limit() >= fileSize)
+                    throw new IOException("Snapshot is truncated");
+                seek(windowStart + window.limit());
+            }
+            return window.get() & 0xFF;
+        }
+        
+        /**
+         * @return next varint of the file, as written by {@link #writeVarint}
+         * @throws IOException if the file ends or the varint is too long
+         */
+        public long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Snapshot has a malformed varint");
+        }
+        
+        /**
+         * Reads bytes of the file
+         * @param bytes array to fill
+         * @throws IOException if the file ends
+         */
+        public void readFully(byte[] bytes) throws IOException {
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) readByte();
+        }
+        
+        /**
+         * Reads the length of a label, which must fit in the labels before the end of the
+         * file
+         * @return number of bytes of the label
+         * @throws IOException if the length is negative or runs past the labels
+         */
+        public int readLabelLength() throws IOException {
+            long length = readVarint();
+            if (length < 0 || length > Integer.MAX_VALUE - 8
+                || length > labelTableOffset - (windowStart + window.position()))
+                throw new IOException("Snapshot has a corrupt label length: " + length);
+            return (int) length;
+        }
+        
+        /**
+         * Maps the whole file in windows of {@link #WINDOW_SIZE} bytes, which stay valid
+         * after the reader is closed
+         * @return windows of the file in order
+         * @throws IOException if the file cannot be mapped
+         */
+        public MappedByteBuffer[] map() throws IOException {
+            MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((fileSize + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+            for (int i = 0; i < windows.length; i++) {
+                long start = (long) i * WINDOW_SIZE;
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, fileSize - start));
+            }
+            return windows;
+        }
+        
+        public int getVersion() {
+            return version;
+        }
+        
+        public long getNodeCount() {
+            return nodeCount;
+        }
+        
+        public long getLabelOffset() {
+            return labelOffset;
+        }
+        
+        public int getLabelCount() {
+            return labelCount;
+        }
+        
+        public long getBranchCount() {
+            return branchCount;
+        }
+        
+        public long getLabelTableOffset() {
+            return labelTableOffset;
+        }
+        
+        public long getBranchTableOffset() {
+            return branchTableOffset;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+    
+    /**
+     * A tree saved with {@link #snapshot(Object, Path)}, read a node at a time from the
+     * file mapped into memory. Only the labels read are kept, so a tree far larger than
+     * the memory can be viewed a part at a time
+     */
+    private static class SnapshotTree {
+        private final MappedByteBuffer[] windows;
+        private final long nodeCount;
+        private final long labelOffset;
+        private final int labelCount;
+        private final long branchCount;
+        private final long labelTableOffset;
+        private final long branchTableOffset;
+        // labels read so far by index
+        private final Map<Integer, String> labels = new HashMap<>();
+        // offset of the next byte to read
+        private long position;
+        
+        /**
+         * @param in reader of a snapshot of version 2 or later
+         * @throws IOException if the file cannot be mapped
+         */
+        public SnapshotTree(SnapshotReader in) throws IOException {
+            windows = in.map();
+            nodeCount = in.getNodeCount();
+            labelOffset = in.getLabelOffset();
+            labelCount = in.getLabelCount();
+            branchCount = in.getBranchCount();
+            labelTableOffset = in.getLabelTableOffset();
+            branchTableOffset = in.getBranchTableOffset();
+        }
+        
+        /**
+         * @return root node of the tree, or null if it is empty
+         */
+        public SnapshotNode getRoot() {
+            return (nodeCount == 0) ? null : new SnapshotNode(this, 5);
+        }
+        
+        /**
+         * Reads the record of a node
+         * @param offset offset of the record in the file
+         * @return label, left child and right child of the node
+         * @throws UncheckedIOException if the record is corrupt
+         */
+        public synchronized Object[] read(long offset) {
+            position = offset;
+            long record = readVarint(labelOffset);
+            long index = record >>> 2;
+            if (index >= labelCount)
+                throw corrupt("label index " + index);
+            Object left = null;
+            Object right = null;
+            if ((record & 3) == 3) {
+                long branch = readVarint(labelOffset);
+                if (branch >= branchCount)
+                    throw corrupt("branch " + branch);
+                left = node(position);
+                position = branchTableOffset + 8 * branch;
+                right = node(readLong());
+            }
+            else if ((record & 2) != 0)
+                left = node(position);
+            else if ((record & 1) != 0)
+                right = node(position);
+            return new Object[] {label((int) index), left, right};
+        }
+        
+        private String label(int index) {
+            String text = labels.get(index);
+            if (text == null) {
+                position = labelTableOffset + 8L * index;
+                position = readLong();
+                if (position < labelOffset || position >= labelTableOffset)
+                    throw corrupt("label offset " + position);
+                long length = readVarint(labelTableOffset);
+                if (length > labelTableOffset - position)
+                    throw corrupt("label length " + length);
+                byte[] bytes = new byte[(int) length];
+                for (int i = 0; i < bytes.length; i++)
+                    bytes[i] = (byte) readByte();
+                text = new String(bytes, StandardCharsets.UTF_8);
+                labels.put(index, text);
+            }
+            return text;
+        }
+        
+        private SnapshotNode node(long offset) {
+            if (offset < 5 || offset >= labelOffset)
+                throw corrupt("node offset " + offset);
+            return new SnapshotNode(this, offset);
+        }
+        
+        private int readByte() {
+            MappedByteBuffer window = windows[(int) (position / SnapshotReader.WINDOW_SIZE)];
+            return window.get((int) (position++ % SnapshotReader.WINDOW_SIZE)) & 0xFF;
+        }
+        
+        private long readVarint(long end) {
+            long value = 0;
+            for (int shift = 0; shift < 64 && position < end; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw corrupt("varint at " + position);
+        }
+        
+        private long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++)
+                value = (value << 8) | readByte();
+            return value;
+        }
+        
+        private static UncheckedIOException corrupt(String what) {
+            return new UncheckedIOException(new IOException("Snapshot has a corrupt " + what));
+        }
+    }
+    
+    /**
+     * Node of a {@link SnapshotTree}, which is only its offset in the file. The viewer
+     * reads its label and children itself, so no accessors have to be set for it
+     */
+    private static class SnapshotNode {
+        private final SnapshotTree tree;
+        private final long offset;
+        
+        public SnapshotNode(SnapshotTree tree, long offset) {
+            this.tree = tree;
+            this.offset = offset;
+        }
+        
+        /**
+         * @return label, left child and right child of the node
+         */
+        public Object[] read() {
+            return tree.read(offset);
+        }
+    }
+    
+    /**
+     * Part of the tree laid out by one task. It is either a whole subtree walked
+     * serially into a fragment, or a node of the top levels with the parts of its
+     * children
+     */
+    private static class Part {
+        // a whole subtree, or null
+        private TreeLayout fragment;
+        // a node of the top levels and its children, if this is not a fragment
+        private Label label;
+        private int depth;
+        private Object source;
+        private Part left;
+        private Part right;
+        
+        private int size;
+        private int maxDepth;
+        // sum of the widths of the nodes
+        private double width;
+        // rank and x position of the leftmost node of a fragment
+        private int offset;
+        private double startX;
+        
+        /**
+         * Copies the nodes of the fragment into place and sets their positions
+         * @param layout layout of the whole tree
+         * @param deltaX multiplier of the width each node takes up
+         */
+        public void copyTo(TreeLayout layout, double deltaX) {
+            System.arraycopy(fragment.labels, 0, layout.labels, offset, size);
+            System.arraycopy(fragment.depth, 0, layout.depth, offset, size);
+            System.arraycopy(fragment.sources, 0, layout.sources, offset, size);
+            double x = startX;
+            for (int i = 0; i < size; i++) {
+                layout.x[offset + i] = x;
+                x += fragment.labels[i].width * deltaX;
+            }
+        }
+    }
+    
+    /**
+     * Splits the top levels of the tree into tasks, and walks each subtree below them
+     * serially
+     */
+    private class PartTask extends RecursiveTask<Part> {
+        private static final long serialVersionUID = 1L;
+        
+        private Object node;
+        private int depth;
+        // levels left to split
+        private int splitDepth;
+        private LabelCache labels;
+        private TreeLayout previous;
+        private SharedIdentitySet visited;
+        
+        public PartTask(Object node, int depth, int splitDepth, LabelCache labels, TreeLayout previous,
+                        SharedIdentitySet visited) {
+            this.node = node;
+            this.depth = depth;
+            this.splitDepth = splitDepth;
+            this.labels = labels;
+            this.previous = previous;
+            this.visited = visited;
+        }
+        
+        @Override
+        protected Part compute() {
+            Part part = new Part();
+            if (splitDepth == 0) {
+                TreeLayout fragment = new TreeLayout();
+                part.maxDepth = parseTree(fragment, node, depth, labels, previous, visited::add);
+                for (int i = 0; i < fragment.size; i++) {
+                    part.width += fragment.labels[i].width;
+                    // the root is the only node of the subtree at its depth
+                    if (fragment.depth[i] == depth)
+                        fragment.root = i;
+                }
+                part.fragment = fragment;
+                part.size = fragment.size;
+                return part;
+            }
+            
+            // a node reached twice makes the layout give up, but the top levels are still
+            // walked to the end
+            visited.add(node);
+            part.label = createLabel(node, labels, previous);
+            part.depth = depth;
+            part.source = node;
+            Object left = getLeft.apply(node);
+            Object right = getRight.apply(node);
+            PartTask leftTask = (left == null) ? null
+                : new PartTask(left, depth + 1, splitDepth - 1, labels, previous, visited);
+            PartTask rightTask = (right == null) ? null
+                : new PartTask(right, depth + 1, splitDepth - 1, labels, previous, visited);
+            if (leftTask != null && rightTask != null) {
+                rightTask.fork();
+                part.left = leftTask.compute();
+                part.right = rightTask.join();
+            }
+            else if (leftTask != null)
+                part.left = leftTask.compute();
+            else if (rightTask != null)
+                part.right = rightTask.compute();
+            
+            part.size = 1;
+            part.maxDepth = depth;
+            part.width = part.label.width;
+            for (Part child : new Part[] {part.left, part.right}) {
+                if (child != null) {
+                    part.size += child.size;
+                    part.maxDepth = Math.max(part.maxDepth, child.maxDepth);
+                    part.width += child.width;
+                }
+            }
+            return part;
+        }
+    }
+    
+    /**
+     * Helper method to order nodes from left to right to figure out spacing. Nodes are
+     * added to the layout in in-order sequence, which is their order from left to right.
+     * The tree is walked with an explicit stack on the heap, so degenerate trees of any
+     * depth do not overflow the call stack. A node reached again, through a cycle or a
+     * node shared by two parents, is not walked again but added as a reference from the
+     * node it was reached from, so broken trees are drawn instead of walked forever
+     * @param layout    layout to add the nodes to
+     * @param rootNode  root node of the subtree
+     * @param rootDepth depth of the root node
+     * @param labels    labels measured in the font to draw with
+     * @param previous  earlier layout of the same tree to reuse the labels of unchanged
+     *                  nodes from, or null
+     * @param visit     adds a node to the nodes visited, and tells whether it was not
+     *                  visited before
+     * @return maximum depth
+     */
+    private int parseTree(TreeLayout layout, Object rootNode, int rootDepth, LabelCache labels,
+                          TreeLayout previous, Predicate<Object> visit) {
+        // nodes whose left subtree is being added, with their depths and labels
+        Object[] stack = new Object[16];
+        int[] depths = new int[16];
+        Label[] stackLabels = new Label[16];
+        int top = 0;
+        int maxDepth = rootDepth;
+        
+        Object node = rootNode;
+        Object from = null;
+        int depth = rootDepth;
+        while (true) {
+            // go down the left spine
+            while (node != null) {
+                if (!visit.test(node)) {
+                    if (from != null)
+                        layout.addReference(from, node);
+                    break;
+                }
+                maxDepth = Math.max(maxDepth, depth);
+                if (top == stack.length) {
+                    stack = Arrays.copyOf(stack, top * 2);
+                    depths = Arrays.copyOf(depths, top * 2);
+                    stackLabels = Arrays.copyOf(stackLabels, top * 2);
+                }
+                stack[top] = node;
+                depths[top] = depth;
+                stackLabels[top++] = createLabel(node, labels, previous);
+                from = node;
+                node = getLeft.apply(node);
+                depth++;
+            }
+            if (top == 0)
+                return maxDepth;
+            
+            // left subtree is done, so add the node and continue with its right subtree
+            node = stack[--top];
+            stack[top] = null;
+            layout.add(stackLabels[top], depths[top], false, node);
+            stackLabels[top] = null;
+            checkCancelled(layout.size);
+            from = node;
+            node = getRight.apply(node);
+            depth = depths[top] + 1;
+        }
+    }
+    
+    /**
+     * Like {@link #parseTree}, but only reads a number of levels below the root and below
+     * each stub that came into view. Nodes below those levels whose children have not
+     * been read are added as stubs. Nodes read by earlier layouts are taken from the
+     * fetched nodes without calling the accessors again
+     * @param layout    layout to add the nodes to
+     * @param rootNode  root node of tree
+     * @param readDepth number of levels to read at a time
+     * @param fetched   nodes read so far, which the nodes read are added to
+     * @param labels    labels measured in the font to draw with
+     * @param previous  earlier layout of the same tree to reuse the labels of unchanged
+     *                  nodes from, or null
+     * @return maximum depth
+     */
+    private int parseTreeLazy(TreeLayout layout, Object rootNode, int readDepth, Map<Object, Object[]> fetched,
+                              LabelCache labels, TreeLayout previous) {
+        // nodes whose left subtree is being added, with their fields, their depths and the
+        // levels left to read below each
+        Object[] stack = new Object[16];
+        Object[][] stackFields = new Object[16][];
+        int[] depths = new int[16];
+        int[] levelsLeft = new int[16];
+        int top = 0;
+        int maxDepth = 1;
+        IdentityIndex visited = new IdentityIndex((previous == null) ? 64 : previous.size);
+        
+        Object node = rootNode;
+        Object from = null;
+        int depth = 1;
+        int levels = readDepth - 1;
+        while (true) {
+            // go down the left spine
+            while (node != null) {
+                if (!visited.add(node)) {
+                    if (from != null)
+                        layout.addReference(from, node);
+                    break;
+                }
+                if (expanded.contains(node))
+                    levels = Math.max(levels, readDepth);
+                Object[] fields = fetch(fetched, node, levels > 0);
+                maxDepth = Math.max(maxDepth, depth);
+                if (top == stack.length) {
+                    stack = Arrays.copyOf(stack, top * 2);
+                    stackFields = Arrays.copyOf(stackFields, top * 2);
+                    depths = Arrays.copyOf(depths, top * 2);
+                    levelsLeft = Arrays.copyOf(levelsLeft, top * 2);
+                }
+                stack[top] = node;
+                stackFields[top] = fields;
+                depths[top] = depth;
+                levelsLeft[top++] = levels;
+                from = node;
+                node = (fields[1] == NOT_FETCHED) ? null : fields[1];
+                depth++;
+                levels = Math.max(levels - 1, 0);
+            }
+            if (top == 0)
+                return maxDepth;
+            
+            // left subtree is done, so add the node and continue with its right subtree
+            node = stack[--top];
+            Object[] fields = stackFields[top];
+            stack[top] = null;
+            stackFields[top] = null;
+            boolean stub = fields[1] == NOT_FETCHED;
+            layout.add(labels.get(fields[0], previousLabel(previous, node)), depths[top], stub, node);
+            checkCancelled(layout.size);
+            from = node;
+            node = stub ? null : fields[2];
+            depth = depths[top] + 1;
+            levels = Math.max(levelsLeft[top] - 1, 0);
+        }
+    }
+    
+    /**
+     * Like {@link #parseTree}, for trees whose nodes have any number of children. Each
+     * node is added after the first half of its children, so the in-order sequence puts
+     * it above the middle of them. Depths alone no longer tell a node's parent apart from
+     * an uncle, so each node is numbered when it is first visited, and the parent of each
+     * node added is kept by that number and turned into a rank at the end
+     * @param layout    layout to add the nodes to
+     * @param rootNode  root node of tree
+     * @param readDepth number of levels to read below the root and below each stub that
+     *                  came into view, like {@link #parseTreeLazy}, or 0 to read the whole
+     *                  tree
+     * @param fetched   nodes read so far, which the nodes read are added to, or null if
+     *                  the whole tree is read
+     * @param labels    labels measured in the font to draw with
+     * @param previous  earlier layout of the same tree to reuse the labels of unchanged
+     *                  nodes from, or null
+     * @return maximum depth
+     */
+    private int parseChildren(TreeLayout layout, Object rootNode, int readDepth, Map<Object, Object[]> fetched,
+                              LabelCache labels, TreeLayout previous) {
+        // nodes whose children are being added, with their children (or null for a stub),
+        // labels, depths, numbers, the levels left to read below each, and how far through
+        // their children they are, where the node itself comes after the first half
+        Object[] stack = new Object[16];
+        Object[][] stackChildren = new Object[16][];
+        Label[] stackLabels = new Label[16];
+        int[] depths = new int[16];
+        int[] visits = new int[16];
+        int[] levelsLeft = new int[16];
+        int[] positions = new int[16];
+        int top = 0;
+        int maxDepth = 1;
+        IdentityIndex visited = new IdentityIndex((previous == null) ? 64 : previous.size);
+        // rank of each node by number, and the number of the parent of each node by rank
+        int[] rankOfVisit = new int[16];
+        int[] parents = new int[16];
+        int visitCount = 0;
+        
+        Object node = rootNode;
+        int depth = 1;
+        int levels = readDepth - 1;
+        if (node != null)
+            visited.add(node);
+        while (true) {
+            if (node != null) {
+                if (top == stack.length) {
+                    stack = Arrays.copyOf(stack, top * 2);
+                    stackChildren = Arrays.copyOf(stackChildren, top * 2);
+                    stackLabels = Arrays.copyOf(stackLabels, top * 2);
+                    depths = Arrays.copyOf(depths, top * 2);
+                    visits = Arrays.copyOf(visits, top * 2);
+                    levelsLeft = Arrays.copyOf(levelsLeft, top * 2);
+                    positions = Arrays.copyOf(positions, top * 2);
+                }
+                if (readDepth == 0) {
+                    stackLabels[top] = createLabel(node, labels, previous);
+                    stackChildren[top] = children(node);
+                }
+                else {
+                    if (expanded.contains(node))
+                        levels = Math.max(levels, readDepth);
+                    Object[] fields = fetch(fetched, node, levels > 0);
+                    stackLabels[top] = labels.get(fields[0], previousLabel(previous, node));
+                    stackChildren[top] = (fields[1] == NOT_FETCHED) ? null : (Object[]) fields[1];
+                }
+                if (visitCount == rankOfVisit.length)
+                    rankOfVisit = Arrays.copyOf(rankOfVisit, visitCount * 2);
+                maxDepth = Math.max(maxDepth, depth);
+                stack[top] = node;
+                depths[top] = depth;
+                visits[top] = visitCount++;
+                levelsLeft[top] = levels;
+                positions[top++] = 0;
+                node = null;
+            }
+            if (top == 0)
+                break;
+            
+            int f = top - 1;
+            Object[] children = (stackChildren[f] == null) ? NO_CHILDREN : stackChildren[f];
+            int position = positions[f]++;
+            if (position > children.length) {
+                // the node and all its children are done
+                top--;
+                stack[top] = null;
+                stackChildren[top] = null;
+                stackLabels[top] = null;
+                continue;
+            }
+            if (position == children.length / 2) {
+                if (layout.size == parents.length)
+                    parents = Arrays.copyOf(parents, layout.size * 2);
+                parents[layout.size] = (f == 0) ? -1 : visits[f - 1];
+                rankOfVisit[visits[f]] = layout.size;
+                layout.add(stackLabels[f], depths[f], stackChildren[f] == null, stack[f]);
+                checkCancelled(layout.size);
+                continue;
+            }
+            Object child = children[(position < children.length / 2) ? position : position - 1];
+            if (!visited.add(child)) {
+                layout.addReference(stack[f], child);
+                continue;
+            }
+            node = child;
+            depth = depths[f] + 1;
+            levels = Math.max(levelsLeft[f] - 1, 0);
+        }
+        
+        for (int i = 0; i < layout.size; i++)
+            parents[i] = (parents[i] == -1) ? -1 : rankOfVisit[parents[i]];
+        layout.setParents(parents);
+        return maxDepth;
+    }
+    
+    /**
+     * Stops the layout of the update thread once it is cancelled. Checked every few
+     * thousand nodes
+     * @param size number of nodes laid out so far
+     */
+    private void checkCancelled(int size) {
+        if ((size & 0xFFF) == 0 && layoutCancelled && Thread.currentThread() == updateThread)
+            throw new CancellationException();
+    }
+    
+    /**
+     * Reads the data and the children of a node, or takes them from the nodes read before
+     * @param fetched  nodes read so far
+     * @param node     node of the tree
+     * @param children whether to read the children if they have not been read
+     * @return data, left child and right child of the node. The children are
+     *         {@link #NOT_FETCHED} if they have not been read
+     */
+    private Object[] fetch(Map<Object, Object[]> fetched, Object node, boolean children) {
+        Object[] fields = fetched.get(node);
+        if (fields == null && node instanceof SnapshotNode) {
+            // the record of a node holds its children too, but they are only kept once
+            // they are asked for, so that the node is still drawn as a stub until then
+            Object[] record = ((SnapshotNode) node).read();
+            fields = children ? record : new Object[] {record[0], NOT_FETCHED, NOT_FETCHED};
+            fetched.put(node, fields);
+        }
+        if (fields == null) {
+            fields = (getChildren != null) ? new Object[] {getData.apply(node), NOT_FETCHED}
+                : new Object[] {getData.apply(node), NOT_FETCHED, NOT_FETCHED};
+            fetched.put(node, fields);
+        }
+        if (children && fields[1] == NOT_FETCHED) {
+            if (getChildren != null)
+                fields[1] = children(node);
+            else if (node instanceof SnapshotNode)
+                System.arraycopy(((SnapshotNode) node).read(), 1, fields, 1, 2);
+            else {
+                fields[1] = getLeft.apply(node);
+                fields[2] = getRight.apply(node);
+            }
+        }
+        return fields;
+    }
+    
+    /**
+     * Reads the nodes that a lazy layout reads, in the same order and as many levels deep,
+     * without laying them out. Data whose text can change is turned into text now, like
+     * {@link #copyTree}, so the layout that follows calls no accessors
+     * @param rootNode  root node of tree
+     * @param readDepth number of levels to read below the root and below each stub that
+     *                  came into view, like {@link #parseTreeLazy}
+     * @param fetched   nodes read so far, which the nodes read are added to
+     */
+    private void fetchLevels(Object rootNode, int readDepth, Map<Object, Object[]> fetched) {
+        IdentityIndex visited = new IdentityIndex(fetched.size());
+        Object[] stack = new Object[32];
+        int[] levelsLeft = new int[32];
+        int top = 0;
+        int count = 0;
+        if (rootNode != null) {
+            stack[top] = rootNode;
+            levelsLeft[top++] = readDepth - 1;
+        }
+        while (top > 0) {
+            Object node = stack[--top];
+            int levels = levelsLeft[top];
+            stack[top] = null;
+            if (!visited.add(node))
+                continue;
+            if (expanded.contains(node))
+                levels = Math.max(levels, readDepth);
+            Object[] fields = fetch(fetched, node, levels > 0);
+            if (!LabelCache.isImmutable(fields[0]))
+                fields[0] = String.valueOf(fields[0]);
+            checkCancelled(++count);
+            if (fields[1] == NOT_FETCHED)
+                continue;
+            
+            // children are pushed from right to left, so they are read from left to right
+            Object[] children = (getChildren != null) ? (Object[]) fields[1] : new Object[] {fields[1], fields[2]};
+            if (top + children.length > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + children.length));
+                levelsLeft = Arrays.copyOf(levelsLeft, stack.length);
+            }
+            for (int i = children.length - 1; i >= 0; i--) {
+                if (children[i] != null) {
+                    stack[top] = children[i];
+                    levelsLeft[top++] = Math.max(levels - 1, 0);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reads the children of a node of a tree whose nodes have any number of children
+     * @param node node of the tree
+     * @return children of the node from left to right, without nulls
+     */
+    private Object[] children(Object node) {
+        Object value = getChildren.apply(node);
+        if (value == null)
+            return NO_CHILDREN;
+        Iterable<?> iterable;
+        if (value instanceof Object[])
+            iterable = Arrays.asList((Object[]) value);
+        else if (value instanceof Iterable)
+            iterable = (Iterable<?>) value;
+        else {
+            throw new IllegalArgumentException("Children of node must be an Iterable or an array, not "
+                + value.getClass().getName());
+        }
+        Object[] children = NO_CHILDREN;
+        int count = 0;
+        for (Object child : iterable) {
+            if (child == null)
+                continue;
+            if (count == children.length)
+                children = Arrays.copyOf(children, Math.max(4, count * 2));
+            children[count++] = child;
+        }
+        return (count == children.length) ? children : Arrays.copyOf(children, count);
+    }
+    
+    /**
+     * Copies a tree guarded by the capture lock, so it can be laid out after the lock is
+     * released. Under a stamped lock, the tree is first copied without locking, and the
+     * copy is kept if no writer took the lock meanwhile. Copies torn by a writer, and
+     * reads that failed because of one, are thrown away and tried again, and the read
+     * lock is taken once the optimistic reads run out
+     * @param rootNode root node of tree
+     * @param expected number of nodes expected
+     * @return data and children of every node, like the nodes read by a lazy layout
+     */
+    private Map<Object, Object[]> capture(Object rootNode, int expected) {
+        long start = System.nanoTime();
+        expected = Math.max(expected, capturedSize);
+        try {
+            StampedLock lock = captureStampedLock;
+            for (int attempt = 0; lock != null && attempt < optimisticReads; attempt++) {
+                long stamp = lock.tryOptimisticRead();
+                if (stamp == 0) {
+                    // a writer holds the lock
+                    tornCaptures.increment();
+                    Thread.yield();
+                    continue;
+                }
+                try {
+                    Map<Object, Object[]> copy = copyTree(rootNode, expected);
+                    if (lock.validate(stamp)) {
+                        capturedSize = copy.size();
+                        return copy;
+                    }
+                }
+                catch (CancellationException e) {
+                    throw e;
+                }
+                catch (RuntimeException e) {
+                    if (lock.validate(stamp))
+                        throw e;
+                }
+                tornCaptures.increment();
+            }
+            Map<Object, Object[]> copy;
+            long stamp = lockTree();
+            try {
+                copy = copyTree(rootNode, expected);
+            }
+            finally {
+                unlockTree(stamp);
+            }
+            capturedSize = copy.size();
+            return copy;
+        }
+        finally {
+            captureTime.add(System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Reads the data and the children of every node reachable from the root, once each.
+     * Data whose text can change is turned into text now, so the copy keeps the text it
+     * had when it was read
+     * @param rootNode root node of tree
+     * @param expected number of nodes expected
+     * @return data and children of every node, like {@link #fetch}
+     */
+    private Map<Object, Object[]> copyTree(Object rootNode, int expected) {
+        Map<Object, Object[]> copy = new IdentityHashMap<>(expected);
+        Object[] stack = new Object[32];
+        int top = 0;
+        if (rootNode != null)
+            stack[top++] = rootNode;
+        while (top > 0) {
+            Object node = stack[--top];
+            stack[top] = null;
+            Object data = getData.apply(node);
+            if (!LabelCache.isImmutable(data))
+                data = String.valueOf(data);
+            // a node reached again is read again, which costs less than looking it up first
+            if (getChildren != null) {
+                Object[] children = children(node);
+                if (copy.put(node, new Object[] {data, children}) != null)
+                    continue;
+                if (top + children.length > stack.length)
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + children.length));
+                for (int i = children.length - 1; i >= 0; i--)
+                    stack[top++] = children[i];
+            }
+            else {
+                Object left = getLeft.apply(node);
+                Object right = getRight.apply(node);
+                if (copy.put(node, new Object[] {data, left, right}) != null)
+                    continue;
+                if (top + 2 > stack.length)
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                if (right != null)
+                    stack[top++] = right;
+                if (left != null)
+                    stack[top++] = left;
+            }
+            checkCancelled(copy.size());
+        }
+        return copy;
+    }
+    
+    /**
+     * Takes the capture lock, waiting for writers to finish
+     * @return stamp to unlock a stamped lock with
+     */
+    private long lockTree() {
+        if (captureStampedLock != null)
+            return captureStampedLock.readLock();
+        captureLock.lock();
+        return 0;
+    }
+    
+    /**
+     * @param stamp stamp returned by {@link #lockTree()}
+     */
+    private void unlockTree(long stamp) {
+        if (captureStampedLock != null)
+            captureStampedLock.unlockRead(stamp);
+        else
+            captureLock.unlock();
+    }
+    
+    /**
+     * Measures the data of a node, reusing the label of the same node in an earlier
+     * layout if its text has not changed
+     * @param node     node of the tree
+     * @param labels   labels measured in the font to draw with
+     * @param previous earlier layout of the same tree, or null
+     * @return label of the node
+     */
+    private Label createLabel(Object node, LabelCache labels, TreeLayout previous) {
+        return labels.get(getData.apply(node), previousLabel(previous, node));
+    }
+    
+    /**
+     * @param previous earlier layout of the same tree, or null
+     * @param node     node of the tree
+     * @return label of the node in the earlier layout, or null if it was not in it
+     */
+    private static Label previousLabel(TreeLayout previous, Object node) {
+        if (previous == null)
+            return null;
+        int rank = previous.rankOf(node);
+        return (rank == -1) ? null : previous.labels[rank];
+    }
+    
+    /**
+     * Nodes of the tree in in-order sequence. The index of a node is its rank from left
+     * to right, and everything about a node is kept in arrays indexed by rank rather than
+     * in an object per node. Positions are in world space, where the leftmost node is at
+     * x = 0 and the root is at y = deltaY
+     */
+    private static class TreeLayout {
+        /**
+         * Most changed regions to report separately before merging them into one
+         */
+        private static final int MAX_REGIONS = 64;
+        /**
+         * Space between neighboring nodes of a tidy tree
+         */
+        private static final double TIDY_GAP = 6;
+        /**
+         * Flag of a node in {@link #diff} whose subtree is drawn as one shape. The low bits
+         * are the ordinal of its {@link Change} plus one, or 0 if it did not change
+         */
+        private static final byte FOLDED = 8;
+        private static final Change[] CHANGES = Change.values();
+        /**
+         * Flags of a node in {@link Search#found} that matches the search, and that has a
+         * match below it
+         */
+        private static final byte FOUND_NODE = 1;
+        private static final byte FOUND_BELOW = 2;
+        /**
+         * Most nodes of a path from the root to list before leaving out the middle
+         */
+        private static final int MAX_PATH = 9;
+        /**
+         * Smallest subtree listed as skewed, the number of most skewed subtrees kept while
+         * the tree is measured, and the number listed, which do not contain each other
+         */
+        private static final int MIN_SKEWED_SIZE = 16;
+        private static final int SKEWED_CANDIDATES = 256;
+        private static final int MAX_SKEWED = 10;
+        
+        /**
+         * Measured text of each node by rank. Nodes with the same text share a label
+         */
+        private Label[] labels = new Label[16];
+        /**
+         * Depth of each node by rank
+         */
+        private int[] depth = new int[16];
+        /**
+         * Nodes of the user's tree that each node was made from
+         */
+        private Object[] sources = new Object[16];
+        /**
+         * Rank of each node of the user's tree, built on first use
+         */
+        private IdentityIndex ranks;
+        /**
+         * Number of nodes in the layout
+         */
+        private int size;
+        /**
+         * Rank of the root node
+         */
+        private int root;
+        /**
+         * Rank of the node in the center of the drawing
+         */
+        private int center;
+        /**
+         * X position of each node by rank
+         */
+        private double[] x = new double[0];
+        /**
+         * Depth of the deepest node
+         */
+        private int maxDepth = 1;
+        /**
+         * Y distance between depths
+         */
+        private double deltaY;
+        
+        // spatial index, built on first use. The ranks of the nodes at depth d are
+        // byLevel[levelStart[d]] to byLevel[levelStart[d + 1] - 1], sorted by x
+        private int[] levelStart;
+        private int[] byLevel;
+        // widest horizontal distance between a node at depth d and its parent
+        private double[] edgeSpan;
+        // widest horizontal distance between a node at depth d and the sides of its subtree
+        private double[] spanLeft;
+        private double[] spanRight;
+        
+        // how each node changed if this is a version of a tree compared to another, or null
+        private byte[] diff;
+        
+        // index of the text of the nodes, built on the first search
+        private LabelIndex labelIndex;
+        // matches outlined in the tree, or null if there is no search. Tile painter threads
+        // read it while the event dispatch thread swaps in the next search
+        private volatile Search search;
+        // shape of the tree, or null if it was not measured. Nodes are then filled in the
+        // color of their imbalance
+        private TreeShape shape;
+        
+        // ranks of the nodes whose children have not been read yet, in increasing order, and
+        // half the width of the widest of them
+        private int[] stubs = new int[0];
+        private int stubCount;
+        private double stubReach;
+        
+        // pool to build the index on, and the roots of subtrees that can be done separately
+        private ForkJoinPool pool;
+        private int[] fragmentRoots;
+        
+        // references from nodes to nodes reached before by another path, as pairs of nodes
+        // of the user's tree, and their ranks, found on first use
+        private Object[] references = new Object[0];
+        private int referenceCount;
+        private int[] referenceRanks;
+        
+        // parent of each node by rank if the tree is not binary, which the depths cannot tell
+        private int[] givenParent;
+        // parent, first child and next sibling to the right by rank, or -1 if none, linked
+        // on first use. Children are in rank order, and in a binary tree a left child comes
+        // before the node and a right child after it
+        private int[] parent;
+        private int[] firstChild;
+        private int[] nextSibling;
+        // aggregates of the subtree of each node, computed bottom up with the index
+        private int[] subtreeSize;
+        private int[] subtreeHeight;
+        private double[] subtreeMinX;
+        private double[] subtreeMaxX;
+        
+        public TreeLayout() {
+        }
+        
+        /**
+         * Constructs a layout with room for a number of nodes, which are set directly
+         * @param capacity number of nodes
+         */
+        public TreeLayout(int capacity) {
+            labels = new Label[capacity];
+            depth = new int[capacity];
+            sources = new Object[capacity];
+            x = new double[capacity];
+        }
+        
+        /**
+         * Builds the index on a fork join pool
+         * @param pool          pool to use
+         * @param fragmentRoots ranks of the roots of subtrees that can be done separately
+         */
+        public void setParallel(ForkJoinPool pool, int[] fragmentRoots) {
+            this.pool = pool;
+            this.fragmentRoots = fragmentRoots;
+        }
+        
+        /**
+         * Adds a node to the right of all nodes added so far. Its parent is found later
+         * from the depths, see {@link #link()}
+         * @param label  measured text of the node
+         * @param depth  depth of the node
+         * @param stub   whether the children of the node have not been read yet
+         * @param source node of the user's tree it was made from
+         */
+        public void add(Label label, int depth, boolean stub, Object source) {
+            if (size == labels.length) {
+                labels = Arrays.copyOf(labels, size * 2);
+                this.depth = Arrays.copyOf(this.depth, size * 2);
+                sources = Arrays.copyOf(sources, size * 2);
+            }
+            if (stub) {
+                if (stubCount == stubs.length)
+                    stubs = Arrays.copyOf(stubs, Math.max(16, stubCount * 2));
+                stubs[stubCount++] = size;
+                stubReach = Math.max(stubReach, label.width / 2);
+            }
+            labels[size] = label;
+            this.depth[size] = depth;
+            sources[size++] = source;
+            parent = null;
+        }
+        
+        /**
+         * Sets the parent of each node, for trees that are not binary
+         * @param parents rank of the parent of each node, or -1 for the root
+         */
+        public void setParents(int[] parents) {
+            givenParent = parents;
+            parent = null;
+        }
+        
+        /**
+         * Adds a reference from a node to a node that was reached before by another path,
+         * which closes a cycle or shares a subtree. It is drawn as an arrow
+         * @param from node of the user's tree the other node was reached from
+         * @param to   node of the user's tree reached again
+         */
+        public void addReference(Object from, Object to) {
+            if (2 * referenceCount == references.length)
+                references = Arrays.copyOf(references, Math.max(16, references.length * 2));
+            references[2 * referenceCount] = from;
+            references[2 * referenceCount + 1] = to;
+            referenceCount++;
+            parent = null;
+        }
+        
+        /**
+         * @param i rank of a node
+         * @return whether the children of the node have not been read yet
+         */
+        private boolean isStub(int i) {
+            return stubCount > 0 && Arrays.binarySearch(stubs, 0, stubCount, i) >= 0;
+        }
+        
+        /**
+         * Links each node to its parent and children. In the in-order sequence of a binary
+         * tree, the parent of a node is the deeper of the nearest shallower nodes on its
+         * left and its right, so the links follow from the depths alone and are found with
+         * one pass over a stack of the right spine of the nodes so far. Other trees were
+         * given their parents
+         */
+        private void link() {
+            firstChild = new int[size];
+            nextSibling = new int[size];
+            Arrays.fill(firstChild, -1);
+            Arrays.fill(nextSibling, -1);
+            if (givenParent != null) {
+                parent = givenParent;
+                // in reverse, so each list of children ends up in rank order
+                for (int i = size - 1; i >= 0; i--) {
+                    if (parent[i] == -1) {
+                        root = i;
+                        continue;
+                    }
+                    nextSibling[i] = firstChild[parent[i]];
+                    firstChild[parent[i]] = i;
+                }
+            }
+            else {
+                parent = new int[size];
+                Arrays.fill(parent, -1);
+                int[] spine = new int[64];
+                int top = 0;
+                for (int i = 0; i < size; i++) {
+                    // deeper nodes on the spine are done, and the shallowest of them is the left child
+                    int child = -1;
+                    while (top > 0 && depth[spine[top - 1]] > depth[i])
+                        child = spine[--top];
+                    if (child != -1) {
+                        firstChild[i] = child;
+                        parent[child] = i;
+                    }
+                    if (top > 0) {
+                        // the right child so far, if any, has just become the left child of i
+                        int p = spine[top - 1];
+                        if (firstChild[p] == -1 || firstChild[p] > p)
+                            firstChild[p] = i;
+                        else
+                            nextSibling[firstChild[p]] = i;
+                        parent[i] = p;
+                    }
+                    if (top == spine.length)
+                        spine = Arrays.copyOf(spine, top * 2);
+                    spine[top++] = i;
+                }
+                root = (size == 0) ? 0 : spine[0];
+            }
+            
+            referenceRanks = new int[2 * referenceCount];
+            for (int j = 0; j < referenceRanks.length; j++)
+                referenceRanks[j] = rankOf(references[j]);
+        }
+        
+        /**
+         * Finds the nodes whose children have not been read yet that are drawn node by
+         * node within a rectangle in world space
+         * @param minX        left of the rectangle
+         * @param minY        top of the rectangle
+         * @param maxX        right of the rectangle
+         * @param maxY        bottom of the rectangle
+         * @param detailWidth minimum width in world space of a subtree drawn node by node
+         * @return nodes of the user's tree
+         */
+        public List<Object> stubsIn(double minX, double minY, double maxX, double maxY, double detailWidth) {
+            List<Object> found = new ArrayList<>();
+            if (stubCount == 0)
+                return found;
+            if (levelStart == null)
+                buildIndex();
+            
+            // each level is sorted by x in rank order, so the stubs in view are between the
+            // first and the last rank in view on the levels they can be on
+            int firstRank = size;
+            int lastRank = -1;
+            int bottom = lastLevel(maxY + HEIGHT / 2);
+            for (int d = firstLevel(minY - HEIGHT / 2 - STUB_LENGTH); d <= bottom; d++) {
+                int first = findLevel(d, minX - stubReach);
+                int last = findLevel(d, Math.nextUp(maxX + stubReach)) - 1;
+                if (first <= last) {
+                    firstRank = Math.min(firstRank, byLevel[first]);
+                    lastRank = Math.max(lastRank, byLevel[last]);
+                }
+            }
+            int low = 0;
+            int high = stubCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (stubs[mid] < firstRank)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            
+            for (int j = low; j < stubCount && stubs[j] <= lastRank; j++) {
+                int i = stubs[j];
+                double y = depth[i] * deltaY;
+                // subtrees get wider going up, so the parent is enough to tell if it is collapsed
+                if (x[i] + labels[i].width / 2 >= minX && x[i] - labels[i].width / 2 <= maxX
+                    && y + HEIGHT / 2 + STUB_LENGTH >= minY && y - HEIGHT / 2 <= maxY
+                    && (parent[i] == -1 || !isCollapsed(parent[i], detailWidth)))
+                    found.add(sources[i]);
+            }
+            return found;
+        }
+        
+        /**
+         * @param source node of the user's tree
+         * @return rank of the node, or -1 if it is not in this layout
+         */
+        public int rankOf(Object source) {
+            if (ranks == null) {
+                IdentityIndex index = new IdentityIndex(size);
+                for (int i = 0; i < size; i++) {
+                    // nodes read from a snapshot have no source
+                    if (sources[i] != null)
+                        index.put(sources[i], i);
+                }
+                ranks = index;
+            }
+            return ranks.get(source);
+        }
+        
+        /**
+         * Finds the regions in world space that look different from an earlier layout of
+         * the same tree. Nodes are matched by identity, and a node looks different if its
+         * text, position, parent, whether its children were read, whether it matches the
+         * search or the color of its imbalance changed. Collapsed subtrees containing such a node are included whole,
+         * since their shade and shape change too
+         * @param old         earlier layout with the same distance between depths
+         * @param detailWidth minimum width in world space of a subtree drawn node by node
+         * @return changed regions, or a single region covering all of them if there are many
+         */
+        public List<Rectangle2D> changedRegions(TreeLayout old, double detailWidth) {
+            if (levelStart == null)
+                buildIndex();
+            if (old.levelStart == null)
+                old.buildIndex();
+            List<Rectangle2D> regions = new ArrayList<>();
+            boolean[] matched = new boolean[old.size];
+            boolean[] collapsedDone = new boolean[size];
+            boolean[] oldCollapsedDone = new boolean[old.size];
+            for (int i = 0; i < size; i++) {
+                int o = old.rankOf(sources[i]);
+                if (o != -1) {
+                    matched[o] = true;
+                    int from = parent[i];
+                    int before = old.parent[o];
+                    boolean sameParent = (from == -1) ? before == -1
+                        : before != -1 && sources[from] == old.sources[before];
+                    if (sameParent && x[i] == old.x[o] && depth[i] == old.depth[o]
+                        && labels[i].text.equals(old.labels[o].text) && isStub(i) == old.isStub(o)
+                        && foundFlags(i) == old.foundFlags(o) && imbalanceLevel(i) == old.imbalanceLevel(o)
+                        && (from == -1 || x[from] == old.x[before]))
+                        continue;
+                    old.addRegions(regions, o, detailWidth, oldCollapsedDone, false);
+                }
+                addRegions(regions, i, detailWidth, collapsedDone, false);
+            }
+            for (int o = 0; o < old.size; o++) {
+                if (!matched[o])
+                    old.addRegions(regions, o, detailWidth, oldCollapsedDone, false);
+            }
+            // references are few, so all of them are drawn again
+            double[] curve = new double[6];
+            for (TreeLayout layout : new TreeLayout[] {old, this}) {
+                for (int j = 0; j < layout.referenceCount; j++) {
+                    if (!layout.referenceCurve(j, detailWidth, curve))
+                        continue;
+                    double left = Math.min(curve[0], Math.min(curve[2], curve[4])) - ARROW_LENGTH;
+                    double top = Math.min(curve[1], Math.min(curve[3], curve[5])) - ARROW_LENGTH;
+                    regions.add(new Rectangle2D.Double(left, top,
+                        Math.max(curve[0], Math.max(curve[2], curve[4])) + ARROW_LENGTH - left,
+                        Math.max(curve[1], Math.max(curve[3], curve[5])) + ARROW_LENGTH - top));
+                }
+            }
+            return unionIfMany(regions);
+        }
+        
+        /**
+         * Finds the regions in world space that look different since the search before the
+         * current one: the nodes whose matches changed and the collapsed subtrees they are in
+         * @param old         search set before the current one, or null
+         * @param detailWidth minimum width in world space of a subtree drawn node by node
+         * @return changed regions, or a single region covering all of them if there are many
+         */
+        public List<Rectangle2D> searchRegions(Search old, double detailWidth) {
+            Search search = this.search;
+            List<Rectangle2D> regions = new ArrayList<>();
+            if (old == null && search == null)
+                return regions;
+            if (levelStart == null)
+                buildIndex();
+            boolean[] collapsedDone = new boolean[size];
+            for (int i = 0; i < size; i++) {
+                int before = (old == null) ? 0 : old.found[i];
+                int after = (search == null) ? 0 : search.found[i];
+                if (before != after)
+                    addRegions(regions, i, detailWidth, collapsedDone, true);
+            }
+            return unionIfMany(regions);
+        }
+        
+        /**
+         * @param regions regions to draw again
+         * @return the regions, or a single region covering all of them if there are many
+         */
+        private static List<Rectangle2D> unionIfMany(List<Rectangle2D> regions) {
+            if (regions.size() > MAX_REGIONS) {
+                Rectangle2D union = regions.get(0);
+                for (Rectangle2D region : regions)
+                    union.add(region);
+                regions.clear();
+                regions.add(union);
+            }
+            return regions;
+        }
+        
+        /**
+         * Adds the regions a node and the edge to its parent are drawn in, or the region of
+         * the collapsed subtree it is drawn in
+         * @param regions     regions to add to
+         * @param i           rank of the node
+         * @param detailWidth minimum width in world space of a subtree drawn node by node
+         * @param done        collapsed subtrees already added, by rank of their root
+         * @param outlined    whether the node and its collapsed subtree were outlined as
+         *                    matches of another search, which is drawn around them
+         */
+        private void addRegions(List<Rectangle2D> regions, int i, double detailWidth, boolean[] done,
+                                boolean outlined) {
+            double y = depth[i] * deltaY;
+            // outlines of matches are drawn around the node
+            double margin = (outlined || foundFlags(i) != 0) ? 5 : 1;
+            regions.add(new Rectangle2D.Double(x[i] - labels[i].width / 2 - margin, y - HEIGHT / 2 - margin,
+                labels[i].width + 2 * margin, HEIGHT + (isStub(i) ? STUB_LENGTH : 0) + 2 * margin));
+            int from = parent[i];
+            if (from != -1) {
+                double parentY = depth[from] * deltaY;
+                regions.add(new Rectangle2D.Double(Math.min(x[i], x[from]) - 1, parentY - 1,
+                    Math.abs(x[i] - x[from]) + 2, y - parentY + 2));
+            }
+            
+            int root = collapsedRoot(i, detailWidth);
+            if (isCollapsed(root, detailWidth) && !done[root]) {
+                done[root] = true;
+                margin = (outlined || foundFlags(root) != 0) ? 5 : 1;
+                regions.add(new Rectangle2D.Double(subtreeMinX[root] - margin,
+                    depth[root] * deltaY - HEIGHT / 2 - margin, subtreeMaxX[root] - subtreeMinX[root] + 2 * margin,
+                    subtreeHeight[root] * deltaY + HEIGHT + 2 * margin));
+            }
+        }
+        
+        /**
+         * Places the nodes side by side from left to right
+         * @param deltaX multiplier of the width each node takes up
+         */
+        public void layoutX(double deltaX) {
+            x = new double[size];
+            double startX = 0;
+            for (int i = 0; i < size; i++) {
+                x[i] = startX;
+                startX += labels[i].width * deltaX;
+            }
+            center = size / 2;
+            levelStart = null;
+        }
+        
+        /**
+         * Places the nodes in a tidy tree (Reingold-Tilford). Each subtree is laid out
+         * bottom up, then its children are placed from left to right, each pushed away
+         * from the ones before it until their facing outlines are a gap apart on every
+         * level, and the node is centered above its first and last child. The outlines
+         * are followed down the children, and threads link the end of a shorter outline
+         * to the level below it, so the whole tree is laid out in linear time
+         * @param deltaX multiplier of the distance between neighboring nodes
+         */
+        public void layoutTidy(double deltaX) {
+            if (parent == null)
+                link();
+            int[] start = new int[maxDepth + 2];
+            for (int i = 0; i < size; i++)
+                start[depth[i] + 1]++;
+            for (int d = 1; d < start.length; d++)
+                start[d] += start[d - 1];
+            int[] byDepth = new int[size];
+            for (int i = 0; i < size; i++)
+                byDepth[start[depth[i]]++] = i;
+            
+            // x of each node relative to its parent, and the next node along an outline of
+            // a leaf with its x relative to the leaf
+            double[] offset = new double[size];
+            int[] thread = new int[size];
+            double[] threadOffset = new double[size];
+            Arrays.fill(thread, -1);
+            // deepest node on the left and on the right of each subtree, with their x
+            // relative to the root of the subtree
+            int[] extremeLeft = new int[size];
+            int[] extremeRight = new int[size];
+            double[] extremeLeftX = new double[size];
+            double[] extremeRightX = new double[size];
+            int[] height = new int[size];
+            
+            // last child of each node, where the right outline of its subtree goes on
+            int[] lastChild = new int[size];
+            Arrays.fill(lastChild, -1);
+            for (int i = 0; i < size; i++) {
+                if (parent[i] != -1)
+                    lastChild[parent[i]] = i;
+            }
+            
+            // deepest levels first, so children are done before their parents
+            for (int j = size - 1; j >= 0; j--) {
+                int i = byDepth[j];
+                int first = firstChild[i];
+                if (first == -1) {
+                    extremeLeft[i] = i;
+                    extremeRight[i] = i;
+                    continue;
+                }
+                if (nextSibling[first] == -1) {
+                    // an only child of a binary node sits half a node to its side, so left
+                    // and right differ, and otherwise right below
+                    int child = first;
+                    double shift = (givenParent != null) ? 0
+                        : (labels[i].width + labels[child].width) / 4 * deltaX;
+                    offset[child] = (child < i) ? -shift : shift;
+                    extremeLeft[i] = extremeLeft[child];
+                    extremeRight[i] = extremeRight[child];
+                    extremeLeftX[i] = extremeLeftX[child] + offset[child];
+                    extremeRightX[i] = extremeRightX[child] + offset[child];
+                    height[i] = height[child] + 1;
+                    continue;
+                }
+                
+                // x of the children relative to the first one, and the extremes and height
+                // of the children placed so far
+                offset[first] = 0;
+                int leftmost = extremeLeft[first];
+                int rightmost = extremeRight[first];
+                double leftmostX = extremeLeftX[first];
+                double rightmostX = extremeRightX[first];
+                int childrenHeight = height[first];
+                int last = first;
+                for (int c = nextSibling[first]; c != -1; c = nextSibling[c]) {
+                    // follow the right outline of the children so far and the left outline
+                    // of the next child, keeping the next child far enough to the right
+                    int a = last;
+                    int b = c;
+                    double aX = offset[last];
+                    double bX = 0;
+                    double position = 0;
+                    while (true) {
+                        position = Math.max(position,
+                            aX - bX + (labels[a].width + labels[b].width) / 2 * deltaX + TIDY_GAP);
+                        int nextA = lastChild[a];
+                        int nextB = firstChild[b];
+                        aX += (nextA != -1) ? offset[nextA] : threadOffset[a];
+                        bX += (nextB != -1) ? offset[nextB] : threadOffset[b];
+                        a = (nextA != -1) ? nextA : thread[a];
+                        b = (nextB != -1) ? nextB : thread[b];
+                        if (a == -1 || b == -1)
+                            break;
+                    }
+                    offset[c] = position;
+                    
+                    // continue the outline of the shorter side with the longer one
+                    if (childrenHeight < height[c]) {
+                        thread[leftmost] = b;
+                        threadOffset[leftmost] = (position + bX) - leftmostX;
+                    }
+                    else if (height[c] < childrenHeight) {
+                        int end = extremeRight[c];
+                        thread[end] = a;
+                        threadOffset[end] = aX - (position + extremeRightX[c]);
+                    }
+                    if (height[c] > childrenHeight) {
+                        leftmost = extremeLeft[c];
+                        leftmostX = position + extremeLeftX[c];
+                    }
+                    if (height[c] >= childrenHeight) {
+                        rightmost = extremeRight[c];
+                        rightmostX = position + extremeRightX[c];
+                    }
+                    childrenHeight = Math.max(childrenHeight, height[c]);
+                    last = c;
+                }
+                
+                // center the node above its first and last child
+                double center = offset[last] / 2;
+                for (int c = first; c != -1; c = nextSibling[c])
+                    offset[c] -= center;
+                extremeLeft[i] = leftmost;
+                extremeLeftX[i] = leftmostX - center;
+                extremeRight[i] = rightmost;
+                extremeRightX[i] = rightmostX - center;
+                height[i] = childrenHeight + 1;
+            }
+            
+            // shallowest levels first, so parents are placed before their children
+            x = new double[size];
+            double minX = 0;
+            for (int j = 0; j < size; j++) {
+                int i = byDepth[j];
+                if (i != root)
+                    x[i] = x[parent[i]] + offset[i];
+                minX = Math.min(minX, x[i]);
+            }
+            for (int i = 0; i < size; i++)
+                x[i] -= minX;
+            center = root;
+            levelStart = null;
+        }
+        
+        /**
+         * Gets the offset that puts the center node in the center of the drawing
+         * @param width width of the drawing
+         * @return offset to add to x positions
+         */
+        public double centerOffset(int width) {
+            return (size == 0) ? 0 : width / 2 - x[center];
+        }
+        
+        /**
+         * @return smallest rectangle in world space around the nodes and their stubs, or
+         *         an empty rectangle if the tree is empty
+         */
+        public Rectangle2D bounds() {
+            index();
+            if (size == 0)
+                return new Rectangle2D.Double();
+            double top = deltaY - HEIGHT / 2;
+            double bottom = maxDepth * deltaY + HEIGHT / 2 + ((stubCount > 0) ? STUB_LENGTH : 0);
+            return new Rectangle2D.Double(subtreeMinX[root], top, subtreeMaxX[root] - subtreeMinX[root], bottom - top);
+        }
+        
+        /**
+         * @return x position of the root node, or 0 if the tree is empty
+         */
+        public double rootX() {
+            index();
+            return (size == 0) ? 0 : x[root];
+        }
+        
+        /**
+         * Builds the spatial index now if it has not been built, so it is not built while
+         * the tree is painted
+         */
+        public void index() {
+            if (levelStart == null && size > 0)
+                buildIndex();
+        }
+        
+        /**
+         * Sorts the nodes by depth, links each node to its children and computes the
+         * aggregates of every subtree bottom up
+         */
+        private void buildIndex() {
+            if (parent == null)
+                link();
+            int[] start = new int[maxDepth + 2];
+            edgeSpan = new double[maxDepth + 1];
+            for (int i = 0; i < size; i++) {
+                start[depth[i] + 1]++;
+                if (parent[i] != -1)
+                    edgeSpan[depth[i]] = Math.max(edgeSpan[depth[i]], Math.abs(x[i] - x[parent[i]]));
+            }
+            for (int d = 1; d < start.length; d++)
+                start[d] += start[d - 1];
+            
+            // ranks are visited in increasing order, so each level stays sorted by x
+            int[] next = Arrays.copyOf(start, start.length);
+            byLevel = new int[size];
+            for (int i = 0; i < size; i++)
+                byLevel[next[depth[i]]++] = i;
+            
+            subtreeSize = new int[size];
+            subtreeHeight = new int[size];
+            subtreeMinX = new double[size];
+            subtreeMaxX = new double[size];
+            if (pool != null) {
+                // subtrees walked by separate tasks are independent, which leaves the top levels
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                for (int fragmentRoot : fragmentRoots)
+                    tasks.add(ForkJoinTask.adapt(() -> aggregate(fragmentRoot)));
+                pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+            }
+            aggregate(root);
+            
+            spanLeft = new double[maxDepth + 1];
+            spanRight = new double[maxDepth + 1];
+            for (int i = 0; i < size; i++) {
+                spanLeft[depth[i]] = Math.max(spanLeft[depth[i]], x[i] - subtreeMinX[i]);
+                spanRight[depth[i]] = Math.max(spanRight[depth[i]], subtreeMaxX[i] - x[i]);
+            }
+            levelStart = start;
+        }
+        
+        /**
+         * Computes the aggregates of a subtree bottom up, skipping subtrees that are done
+         * @param subtreeRoot rank of the root of the subtree
+         */
+        private void aggregate(int subtreeRoot) {
+            int[] stack = new int[64];
+            int top = 0;
+            stack[top++] = subtreeRoot;
+            while (top > 0) {
+                int i = stack[top - 1];
+                if (subtreeSize[i] != 0) {
+                    top--;
+                    continue;
+                }
+                
+                // children first
+                boolean ready = true;
+                for (int child = firstChild[i]; child != -1; child = nextSibling[child]) {
+                    if (subtreeSize[child] == 0) {
+                        if (top == stack.length)
+                            stack = Arrays.copyOf(stack, top * 2);
+                        stack[top++] = child;
+                        ready = false;
+                    }
+                }
+                if (!ready)
+                    continue;
+                
+                top--;
+                int count = 1;
+                int height = 0;
+                double minX = x[i] - labels[i].width / 2;
+                double maxX = x[i] + labels[i].width / 2;
+                for (int child = firstChild[i]; child != -1; child = nextSibling[child]) {
+                    count += subtreeSize[child];
+                    height = Math.max(height, subtreeHeight[child] + 1);
+                    minX = Math.min(minX, subtreeMinX[child]);
+                    maxX = Math.max(maxX, subtreeMaxX[child]);
+                }
+                subtreeSize[i] = count;
+                subtreeHeight[i] = height;
+                subtreeMinX[i] = minX;
+                subtreeMaxX[i] = maxX;
+            }
+        }
+        
+        /**
+         * Draws the edges and the nodes that are within a rectangle in world space.
+         * Subtrees narrower than the detail width are drawn as a single shaded triangle
+         * instead of node by node
+         * @param painter     painter to draw with
+         * @param offsetX     offset in x position of the drawing
+         * @param offsetY     offset in y position of the drawing
+         * @param minX        left of the rectangle
+         * @param minY        top of the rectangle
+         * @param maxX        right of the rectangle
+         * @param maxY        bottom of the rectangle
+         * @param detailWidth minimum width in world space of a subtree drawn node by node
+         */
+        public void draw(TreePainter painter, double offsetX, double offsetY, double minX, double minY,
+                         double maxX, double maxY, double detailWidth) {
+            if (size == 0)
+                return;
+            if (levelStart == null)
+                buildIndex();
+            
+            int top = firstLevel(minY - HEIGHT / 2 - STUB_LENGTH);
+            int bottom = lastLevel(maxY + HEIGHT / 2);
+            if (top > maxDepth)
+                return;
+            
+            // nodes whose subtrees are walked top down, and nodes to draw after the edges
+            int[] stack = new int[64];
+            int stackSize = 0;
+            int[] visible = new int[64];
+            int visibleSize = 0;
+            
+            // find the subtrees that reach the rectangle from the first visible level
+            double reach = Math.max(edgeSpan[top], Math.max(spanLeft[top], spanRight[top]));
+            int collapsedRoot = -1;
+            for (int j = findLevel(top, minX - reach); j < levelStart[top + 1]; j++) {
+                int i = byLevel[j];
+                if (x[i] > maxX + reach)
+                    break;
+                if (parent[i] != -1 && isCollapsed(parent[i], detailWidth)) {
+                    // part of a subtree collapsed above the rectangle
+                    int root = collapsedRoot(parent[i], detailWidth);
+                    if (root != collapsedRoot) {
+                        collapsedRoot = root;
+                        if (parent[root] != -1)
+                            drawEdge(painter, root, parent[root], offsetX, offsetY, minX, maxX);
+                        drawSubtree(painter, root, offsetX, offsetY);
+                    }
+                    continue;
+                }
+                if (parent[i] != -1)
+                    drawEdge(painter, i, parent[i], offsetX, offsetY, minX, maxX);
+                if (stackSize == stack.length)
+                    stack = Arrays.copyOf(stack, stackSize * 2);
+                stack[stackSize++] = i;
+            }
+            
+            // walk down to the last visible level, drawing edges and collapsed subtrees
+            while (stackSize > 0) {
+                int i = stack[--stackSize];
+                if (subtreeMaxX[i] < minX || subtreeMinX[i] > maxX
+                    || (depth[i] + subtreeHeight[i]) * deltaY + HEIGHT / 2 + STUB_LENGTH < minY)
+                    continue;
+                if (isCollapsed(i, detailWidth)) {
+                    drawSubtree(painter, i, offsetX, offsetY);
+                    continue;
+                }
+                if (depth[i] <= bottom && x[i] + labels[i].width / 2 >= minX
+                    && x[i] - labels[i].width / 2 <= maxX) {
+                    if (visibleSize == visible.length)
+                        visible = Arrays.copyOf(visible, visibleSize * 2);
+                    visible[visibleSize++] = i;
+                }
+                for (int child = firstChild[i]; child != -1; child = nextSibling[child]) {
+                    drawEdge(painter, child, i, offsetX, offsetY, minX, maxX);
+                    if (depth[i] < bottom) {
+                        if (stackSize == stack.length)
+                            stack = Arrays.copyOf(stack, stackSize * 2);
+                        stack[stackSize++] = child;
+                    }
+                }
+            }
+            
+            double[] curve = new double[6];
+            for (int j = 0; j < referenceCount; j++) {
+                if (!referenceCurve(j, detailWidth, curve))
+                    continue;
+                if (Math.max(curve[0], Math.max(curve[2], curve[4])) + ARROW_LENGTH < minX
+                    || Math.min(curve[0], Math.min(curve[2], curve[4])) - ARROW_LENGTH > maxX
+                    || Math.max(curve[1], Math.max(curve[3], curve[5])) + ARROW_LENGTH < minY
+                    || Math.min(curve[1], Math.min(curve[3], curve[5])) - ARROW_LENGTH > maxY)
+                    continue;
+                painter.drawReference(curve[0] + offsetX, curve[1] + offsetY, curve[2] + offsetX,
+                    curve[3] + offsetY, curve[4] + offsetX, curve[5] + offsetY);
+            }
+            
+            // draw nodes on top of the edges
+            for (int j = 0; j < visibleSize; j++)
+                drawNode(painter, visible[j], offsetX, offsetY);
+            painter.flush();
+        }
+        
+        /**
+         * Finds the curve a reference is drawn along in world space. It bends to one side,
+         * so a reference up to an ancestor does not run over the edges in between, and
+         * ends at the outline of the node it refers to. Nodes in collapsed subtrees are
+         * stood in for by the root of the subtree
+         * @param j           index of the reference
+         * @param detailWidth minimum width in world space of a subtree drawn node by node
+         * @param curve       set to the start, the control point and the end of the curve
+         * @return whether there is a curve to draw, which there is not between nodes of the
+         *         same collapsed subtree
+         */
+        private boolean referenceCurve(int j, double detailWidth, double[] curve) {
+            int from = referenceRanks[2 * j];
+            int to = referenceRanks[2 * j + 1];
+            if (from == -1 || to == -1)
+                return false;
+            boolean loop = from == to;
+            from = collapsedRoot(from, detailWidth);
+            to = collapsedRoot(to, detailWidth);
+            if (from == to && !loop)
+                return false;
+            
+            double halfWidth = labels[to].width / 2;
+            double x2 = x[to];
+            double y2 = depth[to] * deltaY;
+            if (loop) {
+                // a node referring to itself gets a loop out of its right side
+                curve[0] = x2 + halfWidth;
+                curve[1] = y2 + HEIGHT / 4;
+                curve[2] = x2 + halfWidth + HEIGHT;
+                curve[3] = y2 - HEIGHT;
+            }
+            else {
+                curve[0] = x[from];
+                curve[1] = depth[from] * deltaY;
+                curve[2] = (curve[0] + x2) / 2 + (y2 - curve[1]) / 4;
+                curve[3] = (curve[1] + y2) / 2 - (x2 - curve[0]) / 4;
+            }
+            // back from the center of the node toward the control point, to its outline
+            double towardX = curve[2] - x2;
+            double towardY = curve[3] - y2;
+            double scale = Math.min(1, Math.min((halfWidth + 2) / Math.abs(towardX),
+                (HEIGHT / 2 + 2) / Math.abs(towardY)));
+            curve[4] = x2 + towardX * scale;
+            curve[5] = y2 + towardY * scale;
+            return true;
+        }
+        
+        /**
+         * Draws a node, and a short line below it if its children have not been read
+         */
+        private void drawNode(TreePainter painter, int i, double offsetX, double offsetY) {
+            Label label = labels[i];
+            double y = depth[i] * deltaY + offsetY;
+            painter.drawNode(x[i] + offsetX - label.width / 2, y - HEIGHT / 2, label.width, label.text,
+                label.textWidth, IMBALANCE_COLORS[imbalanceLevel(i)]);
+            Change change = change(i);
+            // nodes in place are only marked when their subtree is drawn as one shape
+            if (change != null && change != Change.CHANGED)
+                painter.drawHighlight(x[i] + offsetX - label.width / 2 - 3, y - HEIGHT / 2 - 3, label.width + 6,
+                    HEIGHT + 6, change);
+            if ((foundFlags(i) & FOUND_NODE) != 0)
+                painter.drawMatch(x[i] + offsetX - label.width / 2 - 4, y - HEIGHT / 2 - 4, label.width + 8,
+                    HEIGHT + 8);
+            if (isStub(i))
+                painter.drawStub(x[i] + offsetX, y + HEIGHT / 2);
+        }
+        
+        /**
+         * @param i rank of a node
+         * @return difference between the heights of the highest and the lowest child
+         *         subtree of the node. A missing child of a binary tree counts as height -1
+         */
+        private int balance(int i) {
+            int highest = -1;
+            int lowest = Integer.MAX_VALUE;
+            int children = 0;
+            for (int c = firstChild[i]; c != -1; c = nextSibling[c]) {
+                highest = Math.max(highest, subtreeHeight[c]);
+                lowest = Math.min(lowest, subtreeHeight[c]);
+                children++;
+            }
+            if (children < 2)
+                lowest = (givenParent == null) ? -1 : highest;
+            return highest - lowest;
+        }
+        
+        /**
+         * @param i rank of a node
+         * @return index in {@link #IMBALANCE_COLORS} of the fill of the node, which is 0
+         *         if the shape of the tree was not measured
+         */
+        private int imbalanceLevel(int i) {
+            if (shape == null)
+                return 0;
+            int balance = balance(i);
+            return (balance < 2) ? 0 : (balance < 4) ? 1 : (balance < 8) ? 2 : 3;
+        }
+        
+        /**
+         * Measures the shape of the tree in one pass over the levels from the deepest up,
+         * reusing the size and height of each subtree found by the index. Each subtree
+         * adds up the depths of its nodes, and so the comparisons a lookup of each of them
+         * takes from its root, which is compared to a balanced binary search tree of the
+         * same size. The subtrees that compare worst are kept in a small heap
+         * @return shape of the tree
+         */
+        public TreeShape analyze() {
+            if (shape != null)
+                return shape;
+            index();
+            // depths of the nodes of each subtree below its root added up, and the lowest
+            // rank in each subtree, whose ranks follow each other
+            long[] pathLength = new long[size];
+            int[] lowest = new int[size];
+            int[] heap = new int[SKEWED_CANDIDATES];
+            double[] heapSkew = new double[SKEWED_CANDIDATES];
+            int heapSize = 0;
+            int maxBalance = 0;
+            for (int j = size - 1; j >= 0; j--) {
+                int i = byLevel[j];
+                long length = 0;
+                int low = i;
+                for (int c = firstChild[i]; c != -1; c = nextSibling[c]) {
+                    length += pathLength[c] + subtreeSize[c];
+                    low = Math.min(low, lowest[c]);
+                }
+                pathLength[i] = length;
+                lowest[i] = low;
+                maxBalance = Math.max(maxBalance, balance(i));
+                if (subtreeSize[i] < MIN_SKEWED_SIZE)
+                    continue;
+                // comparisons against a balanced tree of the same size, 1 if the subtree is balanced
+                double skew = (double) (length + subtreeSize[i]) / balancedComparisons(subtreeSize[i]);
+                if (skew <= 1)
+                    continue;
+                if (heapSize == SKEWED_CANDIDATES) {
+                    if (skew <= heapSkew[0])
+                        continue;
+                    // replace the least skewed candidate and sift it down
+                    int k = 0;
+                    while (true) {
+                        int child = 2 * k + 1;
+                        if (child >= heapSize)
+                            break;
+                        if (child + 1 < heapSize && heapSkew[child + 1] < heapSkew[child])
+                            child++;
+                        if (heapSkew[child] >= skew)
+                            break;
+                        heap[k] = heap[child];
+                        heapSkew[k] = heapSkew[child];
+                        k = child;
+                    }
+                    heap[k] = i;
+                    heapSkew[k] = skew;
+                    continue;
+                }
+                int k = heapSize++;
+                while (k > 0 && heapSkew[(k - 1) / 2] > skew) {
+                    heap[k] = heap[(k - 1) / 2];
+                    heapSkew[k] = heapSkew[(k - 1) / 2];
+                    k = (k - 1) / 2;
+                }
+                heap[k] = i;
+                heapSkew[k] = skew;
+            }
+            
+            // most skewed first, leaving out subtrees within or around one already listed
+            Integer[] order = new Integer[heapSize];
+            for (int k = 0; k < heapSize; k++)
+                order[k] = k;
+            Arrays.sort(order, (a, b) -> Double.compare(heapSkew[b], heapSkew[a]));
+            int[] skewed = new int[MAX_SKEWED];
+            long[] skewedComparisons = new long[MAX_SKEWED];
+            int skewedCount = 0;
+            for (int k = 0; k < heapSize && skewedCount < MAX_SKEWED; k++) {
+                int i = heap[order[k]];
+                boolean nested = false;
+                for (int s = 0; s < skewedCount && !nested; s++) {
+                    int other = skewed[s];
+                    nested = (i >= lowest[other] && i < lowest[other] + subtreeSize[other])
+                        || (other >= lowest[i] && other < lowest[i] + subtreeSize[i]);
+                }
+                if (nested)
+                    continue;
+                skewed[skewedCount] = i;
+                skewedComparisons[skewedCount++] = pathLength[i] + subtreeSize[i];
+            }
+            
+            int[] levelCounts = new int[maxDepth + 1];
+            for (int d = 1; d <= maxDepth; d++)
+                levelCounts[d] = levelStart[d + 1] - levelStart[d];
+            shape = new TreeShape(this, (size == 0) ? 0 : pathLength[root] + size, maxBalance, levelCounts,
+                Arrays.copyOf(skewed, skewedCount), Arrays.copyOf(skewedComparisons, skewedCount));
+            return shape;
+        }
+        
+        /**
+         * @param size number of nodes
+         * @return comparisons to look up each node of a balanced binary search tree once,
+         *         where 2^d nodes take d + 1 comparisons each
+         */
+        private static long balancedComparisons(int size) {
+            int height = 31 - Integer.numberOfLeadingZeros(size);
+            return (size + 1L) * (height + 1) - (1L << (height + 1)) + 1;
+        }
+        
+        /**
+         * @param i rank of a node
+         * @return whether the node matches the search and whether a node below it does
+         */
+        private int foundFlags(int i) {
+            Search search = this.search;
+            return (search == null) ? 0 : search.found[i];
+        }
+        
+        /**
+         * Finds the nodes whose text matches a query, to be outlined along with the
+         * collapsed subtrees they are in once the search is set. The text of the nodes is
+         * indexed on the first search, see {@link LabelIndex#find(String)}
+         * @param query text of the nodes to find, or an empty string to stop outlining
+         * @return matches of the query, or null if it is empty
+         */
+        public Search search(String query) {
+            if (query.isEmpty())
+                return null;
+            index();
+            int[] ranks = labelIndex().find(query);
+            byte[] flags = new byte[size];
+            for (int i : ranks) {
+                flags[i] |= FOUND_NODE;
+                // ancestors of an earlier match are marked up to the root already
+                for (int a = parent[i]; a != -1 && (flags[a] & FOUND_BELOW) == 0; a = parent[a])
+                    flags[a] |= FOUND_BELOW;
+            }
+            return new Search(ranks, flags);
+        }
+        
+        /**
+         * @return index of the text of the nodes, built on first use by whichever thread
+         *         searches first
+         */
+        private synchronized LabelIndex labelIndex() {
+            if (labelIndex == null)
+                labelIndex = new LabelIndex(labels, size);
+            return labelIndex;
+        }
+        
+        public Search getSearch() {
+            return search;
+        }
+        
+        public void setSearch(Search search) {
+            this.search = search;
+        }
+        
+        /**
+         * @return ranks of the nodes matching the search in increasing order
+         */
+        public int[] getMatches() {
+            Search search = this.search;
+            return (search == null) ? new int[0] : search.matches;
+        }
+        
+        /**
+         * @return whether the nodes are being searched
+         */
+        public boolean isSearched() {
+            return search != null;
+        }
+        
+        /**
+         * @param i rank of a node
+         * @return text of the nodes from the root down to the node, with the middle of long
+         *         paths left out
+         */
+        public String pathTo(int i) {
+            int[] path = new int[depth[i] + 1];
+            int length = 0;
+            for (int a = i; a != -1; a = parent[a]) {
+                if (length == path.length)
+                    path = Arrays.copyOf(path, length * 2);
+                path[length++] = a;
+            }
+            StringBuilder text = new StringBuilder();
+            for (int k = length - 1; k >= 0; k--) {
+                if (length > MAX_PATH && k == length - MAX_PATH / 2 - 1) {
+                    int left = length - MAX_PATH + 1;
+                    text.append(" > ... ").append(left).append(" more ...");
+                    k -= left - 1;
+                    continue;
+                }
+                if (k < length - 1)
+                    text.append(" > ");
+                text.append(labels[path[k]].text);
+            }
+            return text.toString();
+        }
+        
+        /**
+         * @param i rank of a node
+         * @return center of the node in world space
+         */
+        public Point2D position(int i) {
+            return new Point2D.Double(x[i], depth[i] * deltaY);
+        }
+        
+        /**
+         * @param i rank of a node
+         * @return how the node changed, or null if it did not or this is not a diff
+         */
+        private Change change(int i) {
+            int code = (diff == null) ? 0 : diff[i] & (FOLDED - 1);
+            return (code == 0) ? null : CHANGES[code - 1];
+        }
+        
+        /**
+         * @param i           rank of a node
+         * @param detailWidth minimum width in world space of a subtree drawn node by node
+         * @return whether the subtree of the node is too narrow to draw node by node
+         */
+        private boolean isCollapsed(int i, double detailWidth) {
+            return subtreeMaxX[i] - subtreeMinX[i] < detailWidth
+                || (diff != null && (diff[i] & FOLDED) != 0 && subtreeSize[i] > 1);
+        }
+        
+        /**
+         * @param i           rank of a node
+         * @param detailWidth minimum width in world space of a subtree drawn node by node
+         * @return rank of the highest ancestor of the node whose parent is not collapsed
+         */
+        private int collapsedRoot(int i, double detailWidth) {
+            int root = i;
+            while (parent[root] != -1 && isCollapsed(parent[root], detailWidth))
+                root = parent[root];
+            return root;
+        }
+        
+        /**
+         * Draws the edge between a node and its parent if it crosses the given x range
+         */
+        private void drawEdge(TreePainter painter, int child, int parent, double offsetX, double offsetY,
+                              double minX, double maxX) {
+            if (Math.min(x[child], x[parent]) <= maxX && Math.max(x[child], x[parent]) >= minX) {
+                painter.drawEdge(x[child] + offsetX, depth[child] * deltaY + offsetY, x[parent] + offsetX,
+                    depth[parent] * deltaY + offsetY);
+            }
+        }
+        
+        /**
+         * Draws the whole subtree of a node as one shape
+         */
+        private void drawSubtree(TreePainter painter, int i, double offsetX, double offsetY) {
+            double top = depth[i] * deltaY + offsetY - HEIGHT / 2;
+            double bottom = (depth[i] + subtreeHeight[i]) * deltaY + offsetY + HEIGHT / 2;
+            painter.drawSubtree(x[i] + offsetX, top, subtreeMinX[i] + offsetX, subtreeMaxX[i] + offsetX, bottom,
+                subtreeSize[i], subtreeHeight[i]);
+            Change change = change(i);
+            if (change != null) {
+                painter.drawHighlight(subtreeMinX[i] + offsetX - 3, top - 3, subtreeMaxX[i] - subtreeMinX[i] + 6,
+                    bottom - top + 6, change);
+            }
+            if (foundFlags(i) != 0) {
+                painter.drawMatch(subtreeMinX[i] + offsetX - 4, top - 4, subtreeMaxX[i] - subtreeMinX[i] + 8,
+                    bottom - top + 8);
+            }
+        }
+        
+        /**
+         * Hashes every subtree bottom up from the text of its nodes and its shape, so
+         * subtrees that look the same have the same hash
+         * @return hash of the subtree of each node by rank
+         */
+        public long[] subtreeHashes() {
+            index();
+            long[] hashes = new long[size];
+            // deepest levels first, so children are done before their parents
+            for (int j = size - 1; j >= 0; j--) {
+                int i = byLevel[j];
+                String text = labels[i].text;
+                // FNV-1a
+                long hash = 0xCBF29CE484222325L;
+                for (int k = 0; k < text.length(); k++)
+                    hash = (hash ^ text.charAt(k)) * 0x100000001B3L;
+                // the children on the left of the node, a mark for the node, then the rest
+                int child = firstChild[i];
+                for (; child != -1 && child < i; child = nextSibling[child])
+                    hash = mix(hash * 31 + hashes[child]);
+                hash = mix(hash * 31 + 1);
+                for (; child != -1; child = nextSibling[child])
+                    hash = mix(hash * 31 + hashes[child]);
+                hashes[i] = hash;
+            }
+            return hashes;
+        }
+        
+        /**
+         * Mixes the bits of a hash (the finalizer of SplitMix64)
+         */
+        private static long mix(long hash) {
+            hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+            hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+            return hash ^ (hash >>> 31);
+        }
+        
+        /**
+         * Compares two versions of a tree, marking how each node changed and folding the
+         * subtrees that did not. Both versions are walked together from the root, pairing
+         * the nodes at the same position, but only below nodes whose subtree hash is found
+         * in neither place nor anywhere else in the other version. A subtree found in place
+         * is the same, and one found elsewhere moved, so the walk only follows the changes
+         * and the paths down to them. Each copy of a subtree is only matched once, and
+         * subtrees in place are matched before any moves, so a subtree that is in the other
+         * version fewer times than in this one is only partly moved. Nodes that are walked
+         * are marked by their text in the same way: a node with the same text as its pair
+         * is in place with changes below it, and otherwise it moved while there are nodes
+         * with its text walked in the other version left to match, or else it was inserted
+         * or removed
+         * @param before layout of the earlier version
+         * @param after  layout of the later version
+         */
+        public static void diff(TreeLayout before, TreeLayout after) {
+            long[] beforeHashes = before.subtreeHashes();
+            long[] afterHashes = after.subtreeHashes();
+            // copies of each subtree not yet matched on each side, by the index of its hash
+            // among the distinct hashes of both versions, and copies matched by a move from
+            // the other side before they were reached on this side
+            int[] slots = new int[Integer.highestOneBit(Math.max(1, before.size + after.size)) * 4];
+            long[] keys = new long[slots.length];
+            int[] beforeIndex = hashIndex(beforeHashes, before.size, keys, slots);
+            int[] afterIndex = hashIndex(afterHashes, after.size, keys, slots);
+            int distinct = 0;
+            for (int slot : slots)
+                distinct = Math.max(distinct, slot);
+            int[] beforeFree = new int[distinct];
+            int[] afterFree = new int[distinct];
+            int[] beforeOwed = new int[distinct];
+            int[] afterOwed = new int[distinct];
+            for (int i = 0; i < before.size; i++)
+                beforeFree[beforeIndex[i]]++;
+            for (int i = 0; i < after.size; i++)
+                afterFree[afterIndex[i]]++;
+            int[] beforeCopies = beforeFree.clone();
+            int[] afterCopies = afterFree.clone();
+            before.diff = new byte[before.size];
+            after.diff = new byte[after.size];
+            Arrays.fill(before.diff, FOLDED);
+            Arrays.fill(after.diff, FOLDED);
+            
+            // pairs of ranks at the same position to walk, pairs that may have moved, which
+            // wait until the walk runs out so that the subtrees in place are matched first,
+            // and pairs walked, where -1 means there is no node to walk on that side. The
+            // waiting pairs are a queue from moveHead to moveCount
+            int[] stack = new int[64];
+            int top = 0;
+            int[] moves = new int[64];
+            int moveHead = 0;
+            int moveCount = 0;
+            int[] walked = new int[64];
+            int walkedSize = 0;
+            if (before.size > 0 || after.size > 0) {
+                stack[top++] = (before.size == 0) ? -1 : before.root;
+                stack[top++] = (after.size == 0) ? -1 : after.root;
+            }
+            while (top > 0 || moveHead < moveCount) {
+                int o;
+                int n;
+                if (top > 0) {
+                    n = stack[--top];
+                    o = stack[--top];
+                    if (o != -1 && n != -1 && beforeHashes[o] == afterHashes[n]) {
+                        before.match(o, beforeIndex, beforeFree, afterFree);
+                        continue;
+                    }
+                    if ((o != -1 && afterCopies[beforeIndex[o]] > 0)
+                        || (n != -1 && beforeCopies[afterIndex[n]] > 0)) {
+                        if (moveCount + 2 > moves.length) {
+                            // move the queue to the front before growing it
+                            moveCount -= moveHead;
+                            System.arraycopy(moves, moveHead, moves, 0, moveCount);
+                            moveHead = 0;
+                            if (moveCount + 2 > moves.length / 2)
+                                moves = Arrays.copyOf(moves, moves.length * 2);
+                        }
+                        moves[moveCount++] = o;
+                        moves[moveCount++] = n;
+                        continue;
+                    }
+                }
+                else {
+                    // the earliest waiting pair first, so the walk stays in order
+                    o = moves[moveHead++];
+                    n = moves[moveHead++];
+                    if (o != -1 && before.move(o, beforeIndex, beforeOwed, afterOwed, beforeFree, afterFree)) {
+                        before.diff[o] = (byte) (FOLDED | Change.MOVED.ordinal() + 1);
+                        o = -1;
+                    }
+                    if (n != -1 && after.move(n, afterIndex, afterOwed, beforeOwed, afterFree, beforeFree)) {
+                        after.diff[n] = (byte) (FOLDED | Change.MOVED.ordinal() + 1);
+                        n = -1;
+                    }
+                    if (o == -1 && n == -1)
+                        continue;
+                }
+                
+                if (walkedSize + 2 > walked.length)
+                    walked = Arrays.copyOf(walked, walked.length * 2);
+                walked[walkedSize++] = o;
+                walked[walkedSize++] = n;
+                // children on the left of the nodes are paired from the left, and so are the
+                // children on the right, so left and right children of binary trees pair up
+                int beforeChild = (o == -1) ? -1 : before.firstChild[o];
+                int afterChild = (n == -1) ? -1 : after.firstChild[n];
+                for (int side = 0; side < 2; side++) {
+                    while (true) {
+                        int b = (beforeChild != -1 && (side == 1 || beforeChild < o)) ? beforeChild : -1;
+                        int a = (afterChild != -1 && (side == 1 || afterChild < n)) ? afterChild : -1;
+                        if (b == -1 && a == -1)
+                            break;
+                        if (top + 2 > stack.length)
+                            stack = Arrays.copyOf(stack, stack.length * 2);
+                        stack[top++] = b;
+                        stack[top++] = a;
+                        if (b != -1)
+                            beforeChild = before.nextSibling[b];
+                        if (a != -1)
+                            afterChild = after.nextSibling[a];
+                    }
+                }
+            }
+            
+            // walked nodes not in place by their text, with the count walked on each side,
+            // which becomes the count of them that moved
+            Map<String, int[]> texts = new HashMap<>();
+            for (int j = 0; j < walkedSize; j += 2) {
+                int o = walked[j];
+                int n = walked[j + 1];
+                if (o != -1 && n != -1 && before.labels[o].text.equals(after.labels[n].text))
+                    continue;
+                if (o != -1)
+                    texts.computeIfAbsent(before.labels[o].text, text -> new int[2])[0]++;
+                if (n != -1)
+                    texts.computeIfAbsent(after.labels[n].text, text -> new int[2])[1]++;
+            }
+            for (int[] counts : texts.values())
+                counts[0] = counts[1] = Math.min(counts[0], counts[1]);
+            for (int j = 0; j < walkedSize; j += 2) {
+                int o = walked[j];
+                int n = walked[j + 1];
+                boolean inPlace = o != -1 && n != -1 && before.labels[o].text.equals(after.labels[n].text);
+                if (o != -1) {
+                    Change change = inPlace ? Change.CHANGED
+                        : (texts.get(before.labels[o].text)[0]-- > 0) ? Change.MOVED : Change.REMOVED;
+                    before.diff[o] = (byte) (change.ordinal() + 1);
+                }
+                if (n != -1) {
+                    Change change = inPlace ? Change.CHANGED
+                        : (texts.get(after.labels[n].text)[1]-- > 0) ? Change.MOVED : Change.INSERTED;
+                    after.diff[n] = (byte) (change.ordinal() + 1);
+                }
+            }
+        }
+        
+        /**
+         * Numbers distinct hashes in the order they are first seen, in an open addressing
+         * table shared by both versions
+         * @param hashes hash of each node
+         * @param size   number of nodes
+         * @param keys   hash in each slot of the table
+         * @param slots  number of the hash in each slot of the table plus one, or 0 if the
+         *               slot is empty
+         * @return number of the hash of each node
+         */
+        private static int[] hashIndex(long[] hashes, int size, long[] keys, int[] slots) {
+            int[] index = new int[size];
+            int mask = slots.length - 1;
+            int count = 0;
+            for (int slot : slots)
+                count = Math.max(count, slot);
+            for (int i = 0; i < size; i++) {
+                // the hashes are already mixed, so their low bits are spread out
+                int slot = (int) hashes[i] & mask;
+                while (slots[slot] != 0 && keys[slot] != hashes[i])
+                    slot = (slot + 1) & mask;
+                if (slots[slot] == 0) {
+                    keys[slot] = hashes[i];
+                    slots[slot] = ++count;
+                }
+                index[i] = slots[slot] - 1;
+            }
+            return index;
+        }
+        
+        /**
+         * Matches a subtree of this version with a copy in the other version, using up a
+         * copy of it and of each subtree below it on both sides
+         * @param i         rank of the root of the subtree
+         * @param index     index of the hash of each node of this version
+         * @param free      copies not yet matched in this version, by hash index
+         * @param otherFree copies not yet matched in the other version, by hash index
+         */
+        private void match(int i, int[] index, int[] free, int[] otherFree) {
+            int[] stack = new int[64];
+            int top = 0;
+            stack[top++] = i;
+            while (top > 0) {
+                int j = stack[--top];
+                if (free[index[j]] > 0)
+                    free[index[j]]--;
+                if (otherFree[index[j]] > 0)
+                    otherFree[index[j]]--;
+                for (int child = firstChild[j]; child != -1; child = nextSibling[child]) {
+                    if (top == stack.length)
+                        stack = Arrays.copyOf(stack, top * 2);
+                    stack[top++] = child;
+                }
+            }
+        }
+        
+        /**
+         * Checks if a subtree of this version moved, which is when a copy of it in the other
+         * version already matched it or there is a copy there left to match it
+         * @param i          rank of the root of the subtree
+         * @param index      index of the hash of each node of this version
+         * @param owed       copies in this version matched by moves in the other version
+         * @param otherOwed  copies in the other version matched by moves in this version
+         * @param free       copies not yet matched in this version, by hash index
+         * @param otherFree  copies not yet matched in the other version, by hash index
+         * @return whether the subtree moved
+         */
+        private boolean move(int i, int[] index, int[] owed, int[] otherOwed, int[] free, int[] otherFree) {
+            int k = index[i];
+            if (owed[k] > 0) {
+                owed[k]--;
+                return true;
+            }
+            if (otherFree[k] == 0)
+                return false;
+            match(i, index, free, otherFree);
+            otherOwed[k]++;
+            return true;
+        }
+        
+        /**
+         * @param y y position in world space
+         * @return first depth at or below the y position
+         */
+        private int firstLevel(double y) {
+            if (deltaY <= 0)
+                return (y <= 0) ? 1 : Integer.MAX_VALUE;
+            return (int) Math.max(1, Math.ceil(y / deltaY));
+        }
+        
+        /**
+         * @param y y position in world space
+         * @return last depth at or above the y position
+         */
+        private int lastLevel(double y) {
+            if (deltaY <= 0)
+                return (y >= 0) ? maxDepth : 0;
+            return (int) Math.min(maxDepth, Math.floor(y / deltaY));
+        }
+        
+        /**
+         * Binary searches a level for the first node at or to the right of an x position
+         * @param depth depth of the level
+         * @param minX  x position in world space
+         * @return index in {@link #byLevel} of the first node at or right of minX
+         */
+        private int findLevel(int depth, double minX) {
+            int low = levelStart[depth];
+            int high = levelStart[depth + 1];
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (x[byLevel[mid]] < minX)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+        
+        public int getMaxDepth() {
+            return maxDepth;
+        }
+        
+        public void setMaxDepth(int maxDepth) {
+            this.maxDepth = maxDepth;
+            levelStart = null;
+        }
+        
+        public double getDeltaY() {
+            return deltaY;
+        }
+        
+        public void setDeltaY(double deltaY) {
+            this.deltaY = deltaY;
+        }
+    }
+    
+    /**
+     * Component that draws a tree in world space, which can be panned by dragging and
+     * zoomed with the mouse wheel. The tree is drawn in tiles that are cached for each
+     * zoom level, and only the nodes within a tile are drawn to it. Tiles are drawn while
+     * painting, or on other threads and shown once they are done
+     */
+    private static class TreeCanvas extends JComponent {
+        private static final long serialVersionUID = 1L;
+        /**
+         * Width and height of each tile in pixels
+         */
+        private static final int TILE_SIZE = 256;
+        /**
+         * Scale multiplier of each zoom level
+         */
+        private static final double ZOOM_STEP = 1.25;
+        private static final int MIN_ZOOM = -30;
+        private static final int MAX_ZOOM = 10;
+        
+        // read by the update thread, written on the event dispatch thread. The scale is
+        // ZOOM_STEP ^ zoom
+        private volatile TreeLayout layout;
+        private volatile int zoom;
+        // minimum width in pixels of a subtree drawn node by node
+        private double detailWidth = DETAIL_WIDTH;
+        // whether to draw without antialiasing
+        private boolean fastPaint;
+        // whether to record each tile painted
+        private boolean instrumented;
+        // world origin is drawn at (-originX, -originY) on the screen
+        private int originX;
+        private int originY;
+        // tiles drawn so far, which may be shared with other canvases
+        private final TileCache tiles;
+        // threads to draw tiles on, or null to draw them while painting
+        private final Executor painter;
+        // tiles being drawn on the painter threads, and the number of times the tiles were
+        // cleared, so tiles of an older tree are not shown when they are done
+        private final Set<Tile> pending = new HashSet<>();
+        private int generation;
+        // index in the matches of the search of the match the view was centered on, or -1
+        private int match = -1;
+        // canvas that shows this one by active rendering, or null if Swing paints it
+        private ActiveCanvas surface;
+        
+        // pans and zooms the view, and the last mouse position when dragging
+        private final MouseAdapter mouse;
+        private Point dragStart;
+        // called with the stubs in view after painting, or null
+        private Consumer<List<Object>> stubListener;
+        
+        public TreeCanvas() {
+            this(new TileCache(), null);
+        }
+        
+        /**
+         * @param tiles   cache to keep drawn tiles in
+         * @param painter threads to draw tiles on, or null to draw them while painting
+         */
+        public TreeCanvas(TileCache tiles, Executor painter) {
+            this.tiles = tiles;
+            this.painter = painter;
+            tiles.add(this);
+            setBackground(Color.WHITE);
+            setOpaque(true);
+            mouse = new MouseAdapter() {
+                @Override
+                public void mousePressed(MouseEvent e) {
+                    dragStart = e.getPoint();
+                }
+                
+                @Override
+                public void mouseDragged(MouseEvent e) {
+                    if (dragStart == null)
+                        return;
+                    originX -= e.getX() - dragStart.x;
+                    originY -= e.getY() - dragStart.y;
+                    dragStart = e.getPoint();
+                    repaint();
+                }
+                
+                @Override
+                public void mouseReleased(MouseEvent e) {
+                    dragStart = null;
+                }
+                
+                @Override
+                public void mouseWheelMoved(MouseWheelEvent e) {
+                    zoomTo(zoom - e.getWheelRotation(), e.getX(), e.getY());
+                }
+            };
+            addMouseListener(mouse);
+            addMouseMotionListener(mouse);
+            addMouseWheelListener(mouse);
+            setToolTipText("");
+        }
+        
+        /**
+         * Shows this canvas in a canvas drawn by active rendering instead, which it asks
+         * for a frame wherever it would repaint. This canvas then only keeps the view and
+         * its tiles, and is panned and zoomed with the mouse over the other canvas
+         * @param surface canvas to show this one in, sized as this one is
+         */
+        public void showIn(ActiveCanvas surface) {
+            this.surface = surface;
+            surface.addMouseListener(mouse);
+            surface.addMouseMotionListener(mouse);
+            surface.addMouseWheelListener(mouse);
+        }
+        
+        @Override
+        public void repaint(long time, int x, int y, int width, int height) {
+            if (surface != null)
+                surface.requestFrame();
+            else
+                super.repaint(time, x, y, width, height);
+        }
+        
+        /**
+         * @param detailWidth minimum width in pixels of a subtree drawn node by node
+         */
+        public void setDetailWidth(double detailWidth) {
+            this.detailWidth = detailWidth;
+            clearTiles();
+            repaint();
+        }
+        
+        /**
+         * @param fastPaint whether to draw without antialiasing
+         */
+        public void setFastPaint(boolean fastPaint) {
+            this.fastPaint = fastPaint;
+            clearTiles();
+            repaint();
+        }
+        
+        /**
+         * @param instrumented whether to record each tile painted in {@link RenderStats}
+         *                     and as a {@link TileEvent}
+         */
+        public void setInstrumented(boolean instrumented) {
+            this.instrumented = instrumented;
+        }
+        
+        /**
+         * Drops the tiles drawn so far, and the tiles still being drawn
+         */
+        private void clearTiles() {
+            tiles.removeIf(this, tile -> true);
+            pending.clear();
+            generation++;
+        }
+        
+        /**
+         * @param stubListener called with the nodes in view whose children have not been
+         *                     read yet, each time the view is painted
+         */
+        public void setStubListener(Consumer<List<Object>> stubListener) {
+            this.stubListener = stubListener;
+        }
+        
+        /**
+         * Describes the node or collapsed subtree under the mouse
+         * @param e mouse event
+         * @return text of the node, or the size of the subtree
+         */
+        @Override
+        public String getToolTipText(MouseEvent e) {
+            if (layout == null)
+                return null;
+            double scale = scale(zoom);
+            double x = (e.getX() + originX) / scale;
+            double y = (e.getY() + originY) / scale;
+            PickPainter picker = new PickPainter(x, y);
+            layout.draw(picker, 0, 0, x, y, x, y, detailWidth / scale);
+            return picker.getDescription();
+        }
+        
+        /**
+         * Shows a new tree at 100% zoom, with its middle node in the center
+         * @param layout layout of the tree
+         * @param width  width of the view
+         */
+        public void setTree(TreeLayout layout, int width) {
+            this.layout = layout;
+            clearTiles();
+            zoom = 0;
+            originX = -(int) Math.round(layout.centerOffset(width));
+            originY = 0;
+            repaint();
+        }
+        
+        /**
+         * Shows more of the tree being read, keeping the zoom and the root where they are
+         * on the screen
+         * @param layout layout of the tree
+         */
+        public void growTree(TreeLayout layout) {
+            TreeLayout old = this.layout;
+            if (old != null)
+                originX += (int) Math.round((layout.rootX() - old.rootX()) * scale(zoom));
+            this.layout = layout;
+            clearTiles();
+            repaint();
+        }
+        
+        /**
+         * Shows a new version of the tree without moving the view
+         * @param layout  layout of the tree, matching the current one outside the regions
+         * @param regions regions in world space that look different
+         * @param zoom    zoom level the regions were found at
+         */
+        public void updateTree(TreeLayout layout, List<Rectangle2D> regions, int zoom) {
+            this.layout = layout;
+            if (zoom != this.zoom) {
+                clearTiles();
+                repaint();
+                return;
+            }
+            
+            // tiles of other zoom levels are cheaper to draw again than to check
+            double scale = scale(zoom);
+            tiles.removeIf(this, tile -> tile.zoom != zoom || intersects(regions, tile.x * TILE_SIZE / scale,
+                tile.y * TILE_SIZE / scale, TILE_SIZE / scale));
+            pending.clear();
+            generation++;
+            for (Rectangle2D region : regions) {
+                int x = (int) Math.floor(region.getMinX() * scale) - originX;
+                int y = (int) Math.floor(region.getMinY() * scale) - originY;
+                repaint(x, y, (int) Math.ceil(region.getWidth() * scale) + 2,
+                    (int) Math.ceil(region.getHeight() * scale) + 2);
+            }
+        }
+        
+        /**
+         * @return whether any region intersects the square
+         */
+        private static boolean intersects(List<Rectangle2D> regions, double x, double y, double size) {
+            for (Rectangle2D region : regions) {
+                if (region.intersects(x, y, size, size))
+                    return true;
+            }
+            return false;
+        }
+        
+        public TreeLayout getTree() {
+            return layout;
+        }
+        
+        /**
+         * Outlines the matches of a new search of the tree
+         * @param layout layout that was searched
+         * @param search matches of the search, or null to stop outlining
+         * @return whether the layout is still the one shown
+         */
+        public boolean showSearch(TreeLayout layout, Search search) {
+            if (layout != this.layout)
+                return false;
+            Search old = layout.getSearch();
+            layout.setSearch(search);
+            match = -1;
+            // only the tiles where the outlines changed are drawn again
+            updateTree(layout, layout.searchRegions(old, getDetailWidth(zoom)), zoom);
+            return true;
+        }
+        
+        /**
+         * Centers the view on the next match of the search, zooming in if nodes are not
+         * drawn one by one
+         * @return description of the match and its path from the root
+         */
+        public String showMatch() {
+            TreeLayout layout = this.layout;
+            int[] matches = (layout == null) ? new int[0] : layout.getMatches();
+            if (matches.length > 0) {
+                match = (match + 1) % matches.length;
+                centerOn(matches[match]);
+            }
+            return describeMatch();
+        }
+        
+        /**
+         * Centers the view on a node, zooming in if nodes are not drawn one by one
+         * @param i rank of the node
+         */
+        public void centerOn(int i) {
+            if (layout == null)
+                return;
+            zoom = Math.max(zoom, 0);
+            double scale = scale(zoom);
+            Point2D position = layout.position(i);
+            originX = (int) Math.round(position.getX() * scale - getWidth() / 2.0);
+            originY = (int) Math.round(position.getY() * scale - getHeight() / 2.0);
+            repaint();
+        }
+        
+        /**
+         * @return description of the match the view was last centered on, or of the number
+         *         of matches
+         */
+        public String describeMatch() {
+            TreeLayout layout = this.layout;
+            if (layout == null || !layout.isSearched())
+                return " ";
+            int[] matches = layout.getMatches();
+            if (matches.length == 0)
+                return "No matches";
+            if (match == -1)
+                return matches.length + " matches";
+            match = Math.min(match, matches.length - 1);
+            return (match + 1) + " of " + matches.length + ": " + layout.pathTo(matches[match]);
+        }
+        
+        public int getZoom() {
+            return zoom;
+        }
+        
+        /**
+         * @param zoom zoom level
+         * @return minimum width in world space of a subtree drawn node by node
+         */
+        public double getDetailWidth(int zoom) {
+            return detailWidth / scale(zoom);
+        }
+        
+        /**
+         * Changes the zoom level, keeping the world position under a point in place
+         * @param zoom new zoom level
+         * @param x    x position of the point on the screen
+         * @param y    y position of the point on the screen
+         */
+        private void zoomTo(int zoom, int x, int y) {
+            zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+            if (zoom == this.zoom)
+                return;
+            double ratio = scale(zoom) / scale(this.zoom);
+            originX = (int) Math.round((originX + x) * ratio - x);
+            originY = (int) Math.round((originY + y) * ratio - y);
+            this.zoom = zoom;
+            repaint();
+        }
+        
+        /**
+         * @param zoom zoom level
+         * @return scale from world space to the screen
+         */
+        private static double scale(int zoom) {
+            return Math.pow(ZOOM_STEP, zoom);
+        }
+        
+        /**
+         * @return number of tiles to keep, which is enough to cover the part of the canvas
+         *         in view twice
+         */
+        private int maxTiles() {
+            Rectangle view = getVisibleRect();
+            if (view.isEmpty())
+                return 0;
+            int across = view.width / TILE_SIZE + 2;
+            int down = view.height / TILE_SIZE + 2;
+            return 2 * across * down;
+        }
+        
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.setColor(getBackground());
+            g.fillRect(0, 0, getWidth(), getHeight());
+            if (layout == null)
+                return;
+            
+            int firstX = Math.floorDiv(originX, TILE_SIZE);
+            int firstY = Math.floorDiv(originY, TILE_SIZE);
+            int lastX = Math.floorDiv(originX + getWidth() - 1, TILE_SIZE);
+            int lastY = Math.floorDiv(originY + getHeight() - 1, TILE_SIZE);
+            for (int ty = firstY; ty <= lastY; ty++) {
+                for (int tx = firstX; tx <= lastX; tx++) {
+                    Tile tile = new Tile(zoom, tx, ty);
+                    BufferedImage image = tiles.get(this, tile);
+                    if (image == null && painter != null) {
+                        drawLater(tile);
+                        continue;
+                    }
+                    if (image == null) {
+                        image = drawTile(layout, tile, detailWidth, fastPaint);
+                        tiles.put(this, tile, image);
+                    }
+                    g.drawImage(image, tx * TILE_SIZE - originX, ty * TILE_SIZE - originY, null);
+                }
+            }
+            
+            if (stubListener != null) {
+                double scale = scale(zoom);
+                List<Object> stubs = layout.stubsIn(originX / scale, originY / scale,
+                    (originX + getWidth()) / scale, (originY + getHeight()) / scale, detailWidth / scale);
+                if (!stubs.isEmpty())
+                    stubListener.accept(stubs);
+            }
+        }
+        
+        /**
+         * Draws a tile on the painter threads, then shows it if the tree is still the same
+         * @param tile tile to draw
+         */
+        private void drawLater(Tile tile) {
+            if (!pending.add(tile))
+                return;
+            TreeLayout layout = this.layout;
+            double detailWidth = this.detailWidth;
+            boolean fastPaint = this.fastPaint;
+            int generation = this.generation;
+            painter.execute(() -> {
+                BufferedImage image = drawTile(layout, tile, detailWidth, fastPaint);
+                SwingUtilities.invokeLater(() -> {
+                    if (generation != this.generation)
+                        return;
+                    pending.remove(tile);
+                    tiles.put(this, tile, image);
+                    if (tile.zoom == zoom)
+                        repaint(tile.x * TILE_SIZE - originX, tile.y * TILE_SIZE - originY, TILE_SIZE, TILE_SIZE);
+                });
+            });
+        }
+        
+        /**
+         * Draws the part of a tree within a tile
+         * @param layout      layout of the tree
+         * @param tile        tile to draw
+         * @param detailWidth minimum width in pixels of a subtree drawn node by node
+         * @param fastPaint   whether to draw without antialiasing
+         * @return image of the tile
+         */
+        private BufferedImage drawTile(TreeLayout layout, Tile tile, double detailWidth, boolean fastPaint) {
+            TileEvent event = instrumented ? new TileEvent() : null;
+            long start = System.nanoTime();
+            if (event != null)
+                event.begin();
+            BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = prepareGraphics(image, fastPaint);
+            g.setColor(getBackground());
+            g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+            
+            double scale = scale(tile.zoom);
+            g.translate(-tile.x * TILE_SIZE, -tile.y * TILE_SIZE);
+            g.scale(scale, scale);
+            double minX = tile.x * TILE_SIZE / scale;
+            double minY = tile.y * TILE_SIZE / scale;
+            double size = TILE_SIZE / scale;
+            // include strokes that cross the border of the tile
+            layout.draw(new GraphicsPainter(g), 0, 0, minX - 1, minY - 1, minX + size + 1, minY + size + 1,
+                detailWidth / scale);
+            g.dispose();
+            if (event != null) {
+                event.zoom = tile.zoom;
+                event.x = tile.x;
+                event.y = tile.y;
+                event.commit();
+                RenderStats.INSTANCE.addTile(System.nanoTime() - start);
+            }
+            return image;
+        }
+    }
+    
+    /**
+     * Heavyweight canvas that shows a tree canvas by active rendering. Each frame copies
+     * the tiles in view into the back buffer of a buffer strategy, which is kept in video
+     * memory where there is any, then flips it to the screen. Frames are only drawn after
+     * the view changed, and at most once every {@link #FRAME_INTERVAL} milliseconds, so a
+     * burst of mouse events is drawn as one frame
+     * <p>
+     * Tiles are drawn on the tile painter threads and copied into the frames as they are
+     * done, so frames never wait for the tree to be drawn. Resizing the window only sizes
+     * the buffers and the tree canvas, and draws the tiles that came into view
+     */
+    private static class ActiveCanvas extends Canvas {
+        private static final long serialVersionUID = 1L;
+        /**
+         * Shortest time between frames, in milliseconds
+         */
+        private static final int FRAME_INTERVAL = 16;
+        
+        private final TreeCanvas view;
+        // draws frames while the view keeps changing, and stops once a frame has nothing new
+        private final Timer frames;
+        private boolean changed;
+        
+        /**
+         * @param view canvas that keeps the view and the tiles of the tree
+         */
+        public ActiveCanvas(TreeCanvas view) {
+            this.view = view;
+            frames = new Timer(FRAME_INTERVAL, e -> drawFrame());
+            frames.setInitialDelay(0);
+            setBackground(Color.WHITE);
+            view.showIn(this);
+            addComponentListener(new ComponentAdapter() {
+                @Override
+                public void componentResized(ComponentEvent e) {
+                    view.setSize(getWidth(), getHeight());
+                    requestFrame();
+                }
+            });
+        }
+        
+        /**
+         * Draws a frame once the events being handled are done, or at the next frame if
+         * one was just drawn
+         */
+        public void requestFrame() {
+            if (!SwingUtilities.isEventDispatchThread()) {
+                SwingUtilities.invokeLater(this::requestFrame);
+                return;
+            }
+            changed = true;
+            if (!frames.isRunning())
+                frames.start();
+        }
+        
+        /**
+         * Draws the whole view into the back buffer and shows it, or stops the timer if
+         * nothing changed since the last frame
+         */
+        private void drawFrame() {
+            if (!changed || !isDisplayable()) {
+                frames.stop();
+                return;
+            }
+            changed = false;
+            if (getWidth() <= 0 || getHeight() <= 0)
+                return;
+            if (getBufferStrategy() == null)
+                createBufferStrategy(2);
+            BufferStrategy strategy = getBufferStrategy();
+            // the buffers can be lost to the graphics card at any time, and are drawn
+            // again until a whole frame gets through
+            do {
+                do {
+                    Graphics g = strategy.getDrawGraphics();
+                    try {
+                        view.paintComponent(g);
+                    }
+                    finally {
+                        g.dispose();
+                    }
+                } while (strategy.contentsRestored());
+                strategy.show();
+            } while (strategy.contentsLost());
+            Toolkit.getDefaultToolkit().sync();
+        }
+        
+        /**
+         * Draws a frame when the window shows part of the canvas again
+         */
+        @Override
+        public void paint(Graphics g) {
+            requestFrame();
+        }
+        
+        /**
+         * Leaves the canvas as it is until the frame is drawn, instead of clearing it
+         */
+        @Override
+        public void update(Graphics g) {
+            paint(g);
+        }
+    }
+    
+    /**
+     * Map from objects to ints by identity, using open addressing over primitive arrays
+     * so that no entry objects are allocated
+     */
+    private static class IdentityIndex {
+        private Object[] keys;
+        // values of the keys, or null while the index is only used as a set
+        private int[] values;
+        private int size;
+        
+        /**
+         * @param expected number of keys expected to be added
+         */
+        public IdentityIndex(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+            keys = new Object[capacity];
+        }
+        
+        /**
+         * @param key key to look up
+         * @return value of the key, or -1 if it has none
+         */
+        public int get(Object key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); keys[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key)
+                    return (values == null) ? 0 : values[i];
+            }
+            return -1;
+        }
+        
+        /**
+         * Sets the value of a key
+         * @param key   key to set
+         * @param value value of the key
+         */
+        public void put(Object key, int value) {
+            if ((size + 1) * 2 > keys.length)
+                grow();
+            if (values == null)
+                values = new int[keys.length];
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != null && keys[i] != key)
+                i = (i + 1) & mask;
+            if (keys[i] == null)
+                size++;
+            keys[i] = key;
+            values[i] = value;
+        }
+        
+        /**
+         * Adds a key with the value 0 if it has no value, which lets the index serve as a
+         * set of visited objects
+         * @param key key to add
+         * @return whether the key was added, or false if it already had a value
+         */
+        public boolean add(Object key) {
+            if ((size + 1) * 2 > keys.length)
+                grow();
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != null) {
+                if (keys[i] == key)
+                    return false;
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            size++;
+            return true;
+        }
+        
+        private void grow() {
+            Object[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new Object[oldKeys.length * 2];
+            if (oldValues != null)
+                values = new int[keys.length];
+            // keys are distinct, so each goes in the first free slot without comparing
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == null)
+                    continue;
+                int i = slot(oldKeys[j], mask);
+                while (keys[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                if (oldValues != null)
+                    values[i] = oldValues[j];
+            }
+        }
+        
+        private static int slot(Object key, int mask) {
+            int h = System.identityHashCode(key) * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+    
+    /**
+     * Set of objects by identity that several threads add to at once. The objects are
+     * split into stripes by hash, each an {@link IdentityIndex} locked on its own, so
+     * threads seldom wait for each other
+     */
+    private static class SharedIdentitySet {
+        private final IdentityIndex[] stripes;
+        private final int shift;
+        // whether an object was added that was already in the set
+        private volatile boolean repeated;
+        
+        /**
+         * @param stripes  least number of stripes
+         * @param expected number of objects expected to be added
+         */
+        public SharedIdentitySet(int stripes, int expected) {
+            int bits = 32 - Integer.numberOfLeadingZeros(Math.max(0, stripes - 1));
+            this.stripes = new IdentityIndex[1 << bits];
+            shift = 32 - bits;
+            for (int i = 0; i < this.stripes.length; i++)
+                this.stripes[i] = new IdentityIndex(expected >> bits);
+        }
+        
+        /**
+         * @param key object to add
+         * @return whether the object was added, or false if it was already in the set
+         */
+        public boolean add(Object key) {
+            // the top bits pick the stripe, and IdentityIndex places keys by the low bits
+            IdentityIndex stripe = (shift == 32) ? stripes[0]
+                : stripes[(System.identityHashCode(key) * 0x9E3779B9) >>> shift];
+            boolean added;
+            synchronized (stripe) {
+                added = stripe.add(key);
+            }
+            if (!added)
+                repeated = true;
+            return added;
+        }
+        
+        /**
+         * @return whether any object was added twice
+         */
+        public boolean isRepeated() {
+            return repeated;
+        }
+    }
+    
+    /**
+     * Tiles drawn so far by one or more canvases, least recently used first. Only enough
+     * tiles are kept to cover the parts of the canvases in view twice, so canvases
+     * scrolled out of view give up their tiles to the ones in view
+     */
+    private static class TileCache {
+        private final List<TreeCanvas> canvases = new ArrayList<>();
+        // tiles by (canvas, tile)
+        private final Map<List<Object>, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+        
+        /**
+         * @param canvas canvas to keep tiles of
+         */
+        public void add(TreeCanvas canvas) {
+            canvases.add(canvas);
+        }
+        
+        /**
+         * @return image of the tile of the canvas, or null if it is not drawn
+         */
+        public BufferedImage get(TreeCanvas canvas, Tile tile) {
+            return tiles.get(List.of(canvas, tile));
+        }
+        
+        /**
+         * Keeps the image of a tile of a canvas, dropping the least recently used tiles
+         * beyond the number to keep
+         */
+        public void put(TreeCanvas canvas, Tile tile, BufferedImage image) {
+            tiles.put(List.of(canvas, tile), image);
+            int maxTiles = 0;
+            for (TreeCanvas c : canvases)
+                maxTiles += c.maxTiles();
+            Iterator<BufferedImage> it = tiles.values().iterator();
+            for (int extra = tiles.size() - Math.max(maxTiles, 1); extra > 0; extra--) {
+                it.next();
+                it.remove();
+            }
+        }
+        
+        /**
+         * Drops the tiles of a canvas that match a filter
+         */
+        public void removeIf(TreeCanvas canvas, Predicate<Tile> filter) {
+            tiles.keySet().removeIf(key -> key.get(0) == canvas && filter.test((Tile) key.get(1)));
+        }
+    }
+    
+    /**
+     * Position of a tile at a zoom level
+     */
+    private static class Tile {
+        private final int zoom;
+        private final int x;
+        private final int y;
+        
+        public Tile(int zoom, int x, int y) {
+            this.zoom = zoom;
+            this.x = x;
+            this.y = y;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            
+            Tile other = (Tile) o;
+            return zoom == other.zoom && x == other.x && y == other.y;
+        }
+        
+        @Override
+        public int hashCode() {
+            return (zoom * 31 + x) * 31 + y;
+        }
+    }
+    
+    /**
+     * Text of a value and its measured width, shared by all nodes drawn with the same text
+     */
+    private static class Label {
+        private final String text;
+        // width of the text, and of the rectangle to draw it in
+        private final int textWidth;
+        private final double width;
+        
+        public Label(String text, int textWidth) {
+            this.text = text;
+            this.textWidth = textWidth;
+            this.width = Math.max(MIN_WIDTH, 2 + textWidth);
+        }
+    }
+    
+    /**
+     * Labels measured in one font. The widths of the ASCII characters are kept in a table,
+     * and the labels of immutable values such as numbers, characters and enums are kept
+     * by value, so a repeated value is converted to a string and measured only once
+     */
+    private static class LabelCache {
+        /**
+         * Most labels to keep, so trees of distinct values do not fill up memory
+         */
+        private static final int MAX_LABELS = 1 << 16;
+        
+        private final FontMetrics metrics;
+        // widths of the ASCII characters, or null if the widths of glyphs do not add up
+        // exactly to the width of the text
+        private final int[] asciiWidths;
+        private final Map<Object, Label> labels = new ConcurrentHashMap<>();
+        
+        public LabelCache(FontMetrics metrics) {
+            this.metrics = metrics;
+            if (metrics.getFontRenderContext().usesFractionalMetrics() || metrics.getFont().hasLayoutAttributes())
+                asciiWidths = null;
+            else {
+                asciiWidths = new int[128];
+                for (char c = 0; c < asciiWidths.length; c++)
+                    asciiWidths[c] = metrics.charWidth(c);
+            }
+        }
+        
+        /**
+         * Gets the label of a value
+         * @param value value to draw
+         * @param hint  label the value had before, or null
+         * @return label of the value
+         */
+        public Label get(Object value, Label hint) {
+            boolean immutable = isImmutable(value);
+            if (immutable) {
+                Label label = labels.get(value);
+                if (label != null)
+                    return label;
+            }
+            String text = String.valueOf(value);
+            Label label = (hint != null && hint.text.equals(text)) ? hint : new Label(text, measure(text));
+            if (immutable && labels.size() < MAX_LABELS)
+                labels.putIfAbsent(value, label);
+            return label;
+        }
+        
+        /**
+         * @param text text to measure
+         * @return width of the text
+         */
+        private int measure(String text) {
+            if (asciiWidths == null)
+                return metrics.stringWidth(text);
+            int width = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c >= asciiWidths.length)
+                    return metrics.stringWidth(text);
+                width += asciiWidths[c];
+            }
+            return width;
+        }
+        
+        /**
+         * @param value value to draw
+         * @return whether the text of the value never changes
+         */
+        private static boolean isImmutable(Object value) {
+            return value instanceof String || value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte || value instanceof Character
+                || value instanceof Boolean || value instanceof Double || value instanceof Float
+                || value instanceof Enum;
+        }
+    }
+    
+    /**
+     * Index of the text of the nodes of a layout. The distinct texts are sorted and the
+     * ranks of the nodes are grouped by text in the same order, so the nodes of a prefix
+     * or a range of text are found by binary search in one block. Exact text is found in
+     * a hash table over the texts
+     */
+    private static class LabelIndex {
+        // distinct texts in sorted order. The ranks of the nodes with text t are
+        // ranks[start[t]] to ranks[start[t + 1] - 1], in increasing order
+        private final String[] texts;
+        private final int[] start;
+        private final int[] ranks;
+        // open addressing table of the index of each text plus one by its hash, 0 if empty
+        private final int[] table;
+        // number each text is, or NaN if it is not a number, parsed on first use
+        private double[] values;
+        
+        /**
+         * @param labels measured text of each node by rank
+         * @param size   number of nodes
+         */
+        public LabelIndex(Label[] labels, int size) {
+            // nodes with the same value mostly share a label, so the labels are sorted
+            // rather than the nodes
+            IdentityIndex ids = new IdentityIndex(16);
+            Label[] distinct = new Label[16];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (ids.get(labels[i]) != -1)
+                    continue;
+                if (count == distinct.length)
+                    distinct = Arrays.copyOf(distinct, count * 2);
+                ids.put(labels[i], count);
+                distinct[count++] = labels[i];
+            }
+            distinct = Arrays.copyOf(distinct, count);
+            Arrays.sort(distinct, (a, b) -> a.text.compareTo(b.text));
+            
+            // labels of different values can have the same text
+            String[] texts = new String[count];
+            int textCount = 0;
+            for (Label label : distinct) {
+                if (textCount == 0 || !label.text.equals(texts[textCount - 1]))
+                    texts[textCount++] = label.text;
+                ids.put(label, textCount - 1);
+            }
+            this.texts = Arrays.copyOf(texts, textCount);
+            
+            int[] textOf = new int[size];
+            start = new int[textCount + 1];
+            for (int i = 0; i < size; i++) {
+                textOf[i] = ids.get(labels[i]);
+                start[textOf[i] + 1]++;
+            }
+            for (int t = 0; t < textCount; t++)
+                start[t + 1] += start[t];
+            int[] next = Arrays.copyOf(start, textCount);
+            ranks = new int[size];
+            for (int i = 0; i < size; i++)
+                ranks[next[textOf[i]]++] = i;
+            
+            table = new int[Integer.highestOneBit(Math.max(4, textCount) * 2 - 1) << 1];
+            for (int t = 0; t < textCount; t++) {
+                int slot = slot(this.texts[t]);
+                while (table[slot] != 0)
+                    slot = (slot + 1) & (table.length - 1);
+                table[slot] = t + 1;
+            }
+        }
+        
+        /**
+         * Finds the nodes whose text matches a query. Text is compared as strings, except
+         * that a range whose bounds are numbers finds the texts that are numbers between
+         * them
+         * @param query text to find, text ending in * to find text starting with it, or two
+         *              bounds around .. to find text between them, either of which can be
+         *              left out
+         * @return ranks of the matching nodes in increasing order
+         */
+        public int[] find(String query) {
+            int exact = indexOf(query);
+            if (exact != -1)
+                return collect(exact, exact + 1);
+            if (query.endsWith("*")) {
+                String prefix = query.substring(0, query.length() - 1);
+                // texts starting with the prefix follow each other from the first one
+                int first = bound(prefix, false);
+                int low = first;
+                int high = texts.length;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (texts[mid].startsWith(prefix))
+                        low = mid + 1;
+                    else
+                        high = mid;
+                }
+                return collect(first, low);
+            }
+            int dots = query.indexOf("..");
+            if (dots == -1)
+                return new int[0];
+            String from = query.substring(0, dots).trim();
+            String to = query.substring(dots + 2).trim();
+            double fromValue = from.isEmpty() ? Double.NEGATIVE_INFINITY : parseNumber(from);
+            double toValue = to.isEmpty() ? Double.POSITIVE_INFINITY : parseNumber(to);
+            if (!Double.isNaN(fromValue) && !Double.isNaN(toValue) && !(from.isEmpty() && to.isEmpty()))
+                return collect(fromValue, toValue);
+            return collect(from.isEmpty() ? 0 : bound(from, false), to.isEmpty() ? texts.length : bound(to, true));
+        }
+        
+        /**
+         * @param text text to look up
+         * @return index of the text, or -1 if no node has it
+         */
+        private int indexOf(String text) {
+            for (int slot = slot(text); table[slot] != 0; slot = (slot + 1) & (table.length - 1)) {
+                if (texts[table[slot] - 1].equals(text))
+                    return table[slot] - 1;
+            }
+            return -1;
+        }
+        
+        /**
+         * Binary searches the texts
+         * @param text  text to look for
+         * @param after whether to skip the text itself
+         * @return index of the first text after the text, or at or after it
+         */
+        private int bound(String text, boolean after) {
+            int low = 0;
+            int high = texts.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int compare = texts[mid].compareTo(text);
+                if (compare < 0 || (after && compare == 0))
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+        
+        /**
+         * @return ranks of the nodes of the texts from first up to last, in increasing order
+         */
+        private int[] collect(int first, int last) {
+            if (first >= last)
+                return new int[0];
+            int[] found = Arrays.copyOfRange(ranks, start[first], start[last]);
+            if (last - first > 1)
+                Arrays.sort(found);
+            return found;
+        }
+        
+        /**
+         * @return ranks of the nodes whose text is a number between two bounds, in
+         *         increasing order
+         */
+        private int[] collect(double from, double to) {
+            if (values == null) {
+                double[] values = new double[texts.length];
+                for (int t = 0; t < texts.length; t++)
+                    values[t] = parseNumber(texts[t]);
+                this.values = values;
+            }
+            int count = 0;
+            for (int t = 0; t < texts.length; t++) {
+                if (values[t] >= from && values[t] <= to)
+                    count += start[t + 1] - start[t];
+            }
+            int[] found = new int[count];
+            count = 0;
+            for (int t = 0; t < texts.length; t++) {
+                if (values[t] >= from && values[t] <= to) {
+                    System.arraycopy(ranks, start[t], found, count, start[t + 1] - start[t]);
+                    count += start[t + 1] - start[t];
+                }
+            }
+            Arrays.sort(found);
+            return found;
+        }
+        
+        /**
+         * @param text text of a node
+         * @return number the text is, or NaN if it is not a number
+         */
+        private static double parseNumber(String text) {
+            if (text.isEmpty() || text.length() > 32)
+                return Double.NaN;
+            // most texts that are not numbers are told apart without an exception
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.' && c != 'e' && c != 'E')
+                    return Double.NaN;
+            }
+            try {
+                return Double.parseDouble(text);
+            }
+            catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        
+        private int slot(String text) {
+            int h = text.hashCode() * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (table.length - 1);
+        }
+    }
+    
+    /**
+     * Result of a search of a layout, which is never changed once made, so it can be
+     * swapped in whole while the layout is drawn on other threads
+     */
+    private static class Search {
+        // ranks of the matching nodes in increasing order, and the flags of each node
+        private final int[] matches;
+        private final byte[] found;
+        
+        public Search(int[] matches, byte[] found) {
+            this.matches = matches;
+            this.found = found;
+        }
+    }
+    
+    /**
+     * Shape of a laid out tree, listed beside the window: how many nodes are at each
+     * depth, how many comparisons looking up every node takes compared to a balanced
+     * binary search tree of the same size, and the subtrees where that is worst
+     */
+    private static class TreeShape {
+        /**
+         * Most lines of the histogram of depths, which groups depths beyond that
+         */
+        private static final int MAX_HISTOGRAM = 32;
+        private static final int HISTOGRAM_WIDTH = 20;
+        
+        // text of each line, and the rank of the root of the subtree it lists, or -1
+        private final String[] lines;
+        private final int[] lineRanks;
+        
+        /**
+         * @param layout             layout of the tree
+         * @param comparisons        comparisons to look up each node once from the root
+         * @param maxBalance         largest difference in height between child subtrees
+         * @param levelCounts        number of nodes at each depth, from depth 1
+         * @param skewed             ranks of the roots of the most skewed subtrees
+         * @param skewedComparisons  comparisons to look up each node of each of them
+         */
+        public TreeShape(TreeLayout layout, long comparisons, int maxBalance, int[] levelCounts, int[] skewed,
+                         long[] skewedComparisons) {
+            List<String> lines = new ArrayList<>();
+            List<Integer> ranks = new ArrayList<>();
+            int size = layout.size;
+            int height = (size == 0) ? 0 : layout.subtreeHeight[layout.root];
+            lines.add(size + " nodes, height " + height + " (balanced " + balancedHeight(size) + ")");
+            lines.add(String.format("%.2f comparisons per lookup (balanced %.2f)", perLookup(comparisons, size),
+                perLookup(TreeLayout.balancedComparisons(size), size)));
+            lines.add("Largest balance factor " + maxBalance);
+            
+            lines.add("");
+            lines.add("Nodes by depth");
+            int maxDepth = levelCounts.length - 1;
+            int group = (maxDepth + MAX_HISTOGRAM - 1) / MAX_HISTOGRAM;
+            long most = 1;
+            long[] counts = new long[(maxDepth + group - 1) / Math.max(group, 1) + 1];
+            for (int d = 1; d <= maxDepth; d++)
+                most = Math.max(most, counts[(d - 1) / group] += levelCounts[d]);
+            for (int g = 0; g * group < maxDepth; g++) {
+                int first = g * group + 1;
+                int last = Math.min(maxDepth, first + group - 1);
+                String depths = (first == last) ? String.valueOf(first) : first + "-" + last;
+                int bar = (int) Math.ceil(counts[g] * HISTOGRAM_WIDTH / (double) most);
+                lines.add(String.format("%9s %9d %s", depths, counts[g], "#".repeat(bar)));
+            }
+            for (int k = lines.size(); k > 0; k--)
+                ranks.add(-1);
+            
+            lines.add("");
+            lines.add("Most skewed subtrees (lookup comparisons, balanced)");
+            ranks.add(-1);
+            ranks.add(-1);
+            for (int k = 0; k < skewed.length; k++) {
+                int i = skewed[k];
+                int subtreeSize = layout.subtreeSize[i];
+                lines.add(String.format("%s: %d nodes, height %d (%d), %.2f (%.2f)", layout.labels[i].text,
+                    subtreeSize, layout.subtreeHeight[i], balancedHeight(subtreeSize),
+                    perLookup(skewedComparisons[k], subtreeSize),
+                    perLookup(TreeLayout.balancedComparisons(subtreeSize), subtreeSize)));
+                ranks.add(i);
+            }
+            this.lines = lines.toArray(new String[0]);
+            lineRanks = ranks.stream().mapToInt(Integer::intValue).toArray();
+        }
+        
+        /**
+         * @return height of a balanced binary tree of a number of nodes
+         */
+        private static int balancedHeight(int size) {
+            return (size == 0) ? 0 : 31 - Integer.numberOfLeadingZeros(size);
+        }
+        
+        /**
+         * @return comparisons per lookup of comparisons to look up each of a number of nodes
+         */
+        private static double perLookup(long comparisons, int size) {
+            return (size == 0) ? 0 : comparisons / (double) size;
+        }
+    }
+    
+    /**
+     * How a node differs between two versions of a tree, see
+     * {@link #displayDiff(Object, Object)}
+     */
+    private enum Change {
+        INSERTED("inserted", new Color(0, 160, 0)),
+        REMOVED("removed", new Color(220, 0, 0)),
+        MOVED("moved", new Color(230, 140, 0)),
+        // the node is in place, but something below it changed
+        CHANGED("changed below", new Color(40, 100, 230));
+        
+        private final String description;
+        private final Color color;
+        
+        Change(String description, Color color) {
+            this.description = description;
+            this.color = color;
+        }
+    }
+    
+    /**
+     * Something the edges and nodes of a tree can be drawn on
+     */
+    private interface TreePainter {
+        /**
+         * Draws an edge between two nodes
+         * @param x1 x position of the child
+         * @param y1 y position of the child
+         * @param x2 x position of the parent
+         * @param y2 y position of the parent
+         */
+        void drawEdge(double x1, double y1, double x2, double y2);
+        
+        /**
+         * Draws a node as a rounded rectangle with its text in the center
+         * @param x     left of the rectangle
+         * @param y     top of the rectangle
+         * @param width     width of the rectangle
+         * @param text      text to draw within the rectangle
+         * @param textWidth width of the text in the font of the tree
+         * @param fill      color to fill the rectangle with
+         */
+        void drawNode(double x, double y, double width, String text, int textWidth, Color fill);
+        
+        /**
+         * Draws a whole subtree as a triangle from its root down to its deepest level
+         * @param x      x position of the root
+         * @param y      top of the root
+         * @param left   left of the subtree
+         * @param right  right of the subtree
+         * @param bottom bottom of the deepest node
+         * @param size   number of nodes in the subtree
+         * @param height number of levels below the root
+         */
+        void drawSubtree(double x, double y, double left, double right, double bottom, int size, int height);
+        
+        /**
+         * Marks a node whose children have not been read yet with a dashed line
+         * {@link #STUB_LENGTH} long below it
+         * @param x x position of the node
+         * @param y bottom of the node
+         */
+        void drawStub(double x, double y);
+        
+        /**
+         * Outlines the node or subtree just drawn in the color of how it changed
+         * @param x      left of the outline
+         * @param y      top of the outline
+         * @param width  width of the outline
+         * @param height height of the outline
+         * @param change how the node or subtree changed
+         */
+        void drawHighlight(double x, double y, double width, double height, Change change);
+        
+        /**
+         * Outlines the node just drawn in {@link #SEARCH_COLOR} as a match of the search,
+         * or the subtree just drawn as one with a match in it
+         * @param x      left of the outline
+         * @param y      top of the outline
+         * @param width  width of the outline
+         * @param height height of the outline
+         */
+        void drawMatch(double x, double y, double width, double height);
+        
+        /**
+         * Draws an arrow from a node to a node reached before by another path, as a dashed
+         * curve with its head at the end
+         * @param x1 x position of the start
+         * @param y1 y position of the start
+         * @param cx x position of the control point of the curve
+         * @param cy y position of the control point of the curve
+         * @param x2 x position of the end
+         * @param y2 y position of the end
+         */
+        void drawReference(double x1, double y1, double cx, double cy, double x2, double y2);
+        
+        /**
+         * Finishes drawing whatever the painter held back to draw together
+         */
+        default void flush() {
+        }
+    }
+    
+    /**
+     * Gets the gray level a collapsed subtree is filled with, which is darker the more
+     * nodes it has
+     * @param size number of nodes in the subtree
+     * @return gray level from 0 to 255
+     */
+    private static int subtreeShade(int size) {
+        int bits = 32 - Integer.numberOfLeadingZeros(size);
+        return Math.max(60, 235 - 10 * bits);
+    }
+    
+    /**
+     * Finds the back corners of the head of an arrow {@link #ARROW_LENGTH} long
+     * @param fromX x position the arrow comes from
+     * @param fromY y position the arrow comes from
+     * @param x     x position of the tip
+     * @param y     y position of the tip
+     * @return x and y position of one back corner, then of the other
+     */
+    private static double[] arrowHead(double fromX, double fromY, double x, double y) {
+        double length = Math.hypot(x - fromX, y - fromY);
+        if (length == 0)
+            return new double[] {x, y, x, y};
+        double dx = (x - fromX) / length * ARROW_LENGTH;
+        double dy = (y - fromY) / length * ARROW_LENGTH;
+        return new double[] {x - dx - dy / 2, y - dy + dx / 2, x - dx + dy / 2, y - dy - dx / 2};
+    }
+    
+    /**
+     * Draws the tree with Java2D. Shapes that are close together are collected into one
+     * path per kind and color, and each path is drawn in a single call: the edges, the
+     * collapsed subtrees, the stubs, the references, then the backgrounds, outlines and
+     * text of the nodes. Java2D then fills whole batches without switching colors or allocating a
+     * shape per node. Nodes do not overlap, so the drawing looks the same as one drawn
+     * node by node
+     */
+    private static class GraphicsPainter implements TreePainter {
+        private static final Stroke STUB_STROKE = new BasicStroke(1.1f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER,
+            10, new float[] {2, 2}, 0);
+        private static final Stroke HIGHLIGHT_STROKE = new BasicStroke(2);
+        private static final Stroke REFERENCE_STROKE = new BasicStroke(1.1f, BasicStroke.CAP_BUTT,
+            BasicStroke.JOIN_MITER, 10, new float[] {4, 3}, 0);
+        /**
+         * Number of shapes collected before they are drawn
+         */
+        private static final int BATCH_SIZE = 4096;
+        /**
+         * How many times larger than the area of its shapes the bounding box of a batch
+         * can get. Java2D works through the whole bounding box of a shape when
+         * antialiasing, so batches of shapes far apart would cost more than drawing the
+         * shapes one by one
+         */
+        private static final double BATCH_SPREAD = 4;
+        
+        private Graphics2D g;
+        private double textOffsetY;
+        // area in view in user space, with room for the width of lines, or null if unknown
+        private Rectangle2D view;
+        // part of the edge being clipped that is in view, from 0 to 1
+        private double clipStart;
+        private double clipEnd;
+        // bounding box and area of the shapes collected since the last batch was drawn
+        private double area;
+        private double minX = Double.POSITIVE_INFINITY;
+        private double minY = Double.POSITIVE_INFINITY;
+        private double maxX = Double.NEGATIVE_INFINITY;
+        private double maxY = Double.NEGATIVE_INFINITY;
+        
+        // shapes collected since the last batch was drawn. Collapsed subtrees are kept by
+        // the number of bits in their size, which decides their shade
+        private final Path2D.Double edges = new Path2D.Double();
+        private final Line2D.Double line = new Line2D.Double();
+        private final Path2D.Double[] subtrees = new Path2D.Double[33];
+        private final Path2D.Double subtreeOutlines = new Path2D.Double();
+        private final Path2D.Double stubs = new Path2D.Double();
+        private final Path2D.Double references = new Path2D.Double();
+        private final Path2D.Double arrowHeads = new Path2D.Double();
+        private final Path2D.Double nodes = new Path2D.Double();
+        private final RoundRectangle2D.Double rect = new RoundRectangle2D.Double();
+        // nodes filled in colors other than white, by color
+        private final Map<Color, Path2D.Double> fills = new HashMap<>();
+        // outlines of changed nodes and subtrees, by kind of change, and of matches
+        private final Path2D.Double[] highlights = new Path2D.Double[Change.values().length];
+        private final Path2D.Double matches = new Path2D.Double();
+        private String[] texts = new String[64];
+        private int[] textX = new int[64];
+        private int[] textY = new int[64];
+        private int textCount;
+        private int shapeCount;
+        
+        public GraphicsPainter(Graphics2D g) {
+            this.g = g;
+            FontMetrics metrics = g.getFontMetrics();
+            textOffsetY = (HEIGHT - metrics.getHeight()) / 2 + metrics.getAscent();
+            g.setColor(Color.BLACK);
+            
+            Shape clip = g.getClip();
+            try {
+                Rectangle2D bounds = (clip != null) ? clip.getBounds2D() : g.getTransform().createInverse()
+                    .createTransformedShape(g.getDeviceConfiguration().getBounds()).getBounds2D();
+                view = new Rectangle2D.Double(bounds.getX() - 2, bounds.getY() - 2, bounds.getWidth() + 4,
+                    bounds.getHeight() + 4);
+            }
+            catch (NoninvertibleTransformException e) {
+                // nothing can be seen, so there is nothing to save by clipping
+            }
+        }
+        
+        @Override
+        public void drawEdge(double x1, double y1, double x2, double y2) {
+            // cut the edge to the part in view (Liang-Barsky). Java2D rasterizes a line
+            // that reaches far out of view much more slowly
+            double dx = x2 - x1;
+            double dy = y2 - y1;
+            clipStart = 0;
+            clipEnd = 1;
+            if (view != null && !(clip(-dx, x1 - view.getMinX()) && clip(dx, view.getMaxX() - x1)
+                && clip(-dy, y1 - view.getMinY()) && clip(dy, view.getMaxY() - y1)))
+                return;
+            x2 = x1 + clipEnd * dx;
+            y2 = y1 + clipEnd * dy;
+            x1 += clipStart * dx;
+            y1 += clipStart * dy;
+            
+            double ink = 2 * (Math.abs(x2 - x1) + Math.abs(y2 - y1));
+            if (Math.abs(x2 - x1) * Math.abs(y2 - y1) > BATCH_SPREAD * ink) {
+                // long slanted edges would spread any batch, and Java2D fills a lone line
+                // as a parallelogram
+                line.setLine(x1, y1, x2, y2);
+                g.draw(line);
+                return;
+            }
+            adding(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), ink);
+            edges.moveTo(x1, y1);
+            edges.lineTo(x2, y2);
+            added();
+        }
+        
+        @Override
+        public void drawNode(double x, double y, double width, String text, int textWidth, Color fill) {
+            adding(x, y, x + width, y + HEIGHT, width * HEIGHT);
+            rect.setRoundRect(x, y, width, HEIGHT, width / 4, HEIGHT / 4);
+            nodes.append(rect, false);
+            if (!fill.equals(Color.WHITE))
+                fills.computeIfAbsent(fill, color -> new Path2D.Double()).append(rect, false);
+            if (textCount == texts.length) {
+                texts = Arrays.copyOf(texts, textCount * 2);
+                textX = Arrays.copyOf(textX, textCount * 2);
+                textY = Arrays.copyOf(textY, textCount * 2);
+            }
+            texts[textCount] = text;
+            textX[textCount] = doubleToInt(x + (width - textWidth) / 2);
+            textY[textCount] = doubleToInt(y + textOffsetY);
+            textCount++;
+            added();
+        }
+        
+        @Override
+        public void drawSubtree(double x, double y, double left, double right, double bottom, int size,
+                                int height) {
+            adding(left, y, right, bottom, (right - left) * (bottom - y) / 2);
+            int bits = 32 - Integer.numberOfLeadingZeros(size);
+            if (subtrees[bits] == null)
+                subtrees[bits] = new Path2D.Double();
+            for (Path2D.Double triangle : new Path2D.Double[] {subtrees[bits], subtreeOutlines}) {
+                triangle.moveTo(x, y);
+                triangle.lineTo(right, bottom);
+                triangle.lineTo(left, bottom);
+                triangle.closePath();
+            }
+            added();
+        }
+        
+        @Override
+        public void drawStub(double x, double y) {
+            adding(x, y, x, y + STUB_LENGTH, 2 * STUB_LENGTH);
+            stubs.moveTo(x, y);
+            stubs.lineTo(x, y + STUB_LENGTH);
+            added();
+        }
+        
+        @Override
+        public void drawHighlight(double x, double y, double width, double height, Change change) {
+            adding(x, y, x + width, y + height, 4 * (width + height));
+            if (highlights[change.ordinal()] == null)
+                highlights[change.ordinal()] = new Path2D.Double();
+            highlights[change.ordinal()].append(new RoundRectangle2D.Double(x, y, width, height, 6, 6), false);
+            added();
+        }
+        
+        @Override
+        public void drawMatch(double x, double y, double width, double height) {
+            adding(x, y, x + width, y + height, 4 * (width + height));
+            matches.append(new RoundRectangle2D.Double(x, y, width, height, 6, 6), false);
+            added();
+        }
+        
+        @Override
+        public void drawReference(double x1, double y1, double cx, double cy, double x2, double y2) {
+            double left = Math.min(x1, Math.min(cx, x2)) - ARROW_LENGTH;
+            double top = Math.min(y1, Math.min(cy, y2)) - ARROW_LENGTH;
+            double right = Math.max(x1, Math.max(cx, x2)) + ARROW_LENGTH;
+            double bottom = Math.max(y1, Math.max(cy, y2)) + ARROW_LENGTH;
+            adding(left, top, right, bottom, 2 * (right - left + bottom - top));
+            references.moveTo(x1, y1);
+            references.quadTo(cx, cy, x2, y2);
+            double[] head = arrowHead(cx, cy, x2, y2);
+            arrowHeads.moveTo(x2, y2);
+            arrowHeads.lineTo(head[0], head[1]);
+            arrowHeads.lineTo(head[2], head[3]);
+            arrowHeads.closePath();
+            added();
+        }
+        
+        /**
+         * Narrows the part of the edge being clipped to one side of the view
+         * @param p change in distance to the side along the edge, negated
+         * @param q distance from the start of the edge to the side
+         * @return whether any of the edge is left
+         */
+        private boolean clip(double p, double q) {
+            if (p == 0)
+                return q >= 0;
+            double t = q / p;
+            if (p < 0) {
+                if (t > clipEnd)
+                    return false;
+                clipStart = Math.max(clipStart, t);
+            }
+            else {
+                if (t < clipStart)
+                    return false;
+                clipEnd = Math.min(clipEnd, t);
+            }
+            return true;
+        }
+        
+        /**
+         * Draws the shapes collected so far if adding a shape would spread the batch over
+         * too large an area
+         * @param left   left of the shape
+         * @param top    top of the shape
+         * @param right  right of the shape
+         * @param bottom bottom of the shape
+         * @param ink    area the shape covers
+         */
+        private void adding(double left, double top, double right, double bottom, double ink) {
+            double width = Math.max(maxX, right) - Math.min(minX, left);
+            double height = Math.max(maxY, bottom) - Math.min(minY, top);
+            if (shapeCount > 0 && width * height > BATCH_SPREAD * (area + ink))
+                flush();
+            area += ink;
+            minX = Math.min(minX, left);
+            minY = Math.min(minY, top);
+            maxX = Math.max(maxX, right);
+            maxY = Math.max(maxY, bottom);
+        }
+        
+        /**
+         * Draws the shapes collected so far once there are enough of them
+         */
+        private void added() {
+            if (++shapeCount >= BATCH_SIZE)
+                flush();
+        }
+        
+        @Override
+        public void flush() {
+            g.setColor(Color.BLACK);
+            if (edges.getCurrentPoint() != null) {
+                g.draw(edges);
+                edges.reset();
+            }
+            for (int bits = 0; bits < subtrees.length; bits++) {
+                if (subtrees[bits] == null || subtrees[bits].getCurrentPoint() == null)
+                    continue;
+                int shade = subtreeShade((int) ((1L << bits) - 1));
+                g.setColor(new Color(shade, shade, shade));
+                g.fill(subtrees[bits]);
+                subtrees[bits].reset();
+            }
+            g.setColor(Color.BLACK);
+            if (subtreeOutlines.getCurrentPoint() != null) {
+                g.draw(subtreeOutlines);
+                subtreeOutlines.reset();
+            }
+            
+            if (stubs.getCurrentPoint() != null) {
+                Stroke stroke = g.getStroke();
+                g.setStroke(STUB_STROKE);
+                g.setColor(Color.GRAY);
+                g.draw(stubs);
+                stubs.reset();
+                g.setStroke(stroke);
+            }
+            if (references.getCurrentPoint() != null) {
+                Stroke stroke = g.getStroke();
+                g.setStroke(REFERENCE_STROKE);
+                g.setColor(REFERENCE_COLOR);
+                g.draw(references);
+                g.setStroke(stroke);
+                g.fill(arrowHeads);
+                references.reset();
+                arrowHeads.reset();
+            }
+            
+            // a lone node is still in rect, which Java2D draws faster than a path
+            Shape shape = (textCount == 1) ? rect : nodes;
+            if (textCount > 0) {
+                g.setColor(Color.WHITE);
+                g.fill(shape);
+                for (Map.Entry<Color, Path2D.Double> fill : fills.entrySet()) {
+                    if (fill.getValue().getCurrentPoint() == null)
+                        continue;
+                    g.setColor(fill.getKey());
+                    g.fill(fill.getValue());
+                    fill.getValue().reset();
+                }
+                g.setColor(Color.BLACK);
+                g.draw(shape);
+                nodes.reset();
+            }
+            for (int i = 0; i < textCount; i++) {
+                g.drawString(texts[i], textX[i], textY[i]);
+                texts[i] = null;
+            }
+            for (Change change : Change.values()) {
+                Path2D.Double outlines = highlights[change.ordinal()];
+                if (outlines == null || outlines.getCurrentPoint() == null)
+                    continue;
+                Stroke stroke = g.getStroke();
+                g.setStroke(HIGHLIGHT_STROKE);
+                g.setColor(change.color);
+                g.draw(outlines);
+                outlines.reset();
+                g.setStroke(stroke);
+                g.setColor(Color.BLACK);
+            }
+            if (matches.getCurrentPoint() != null) {
+                Stroke stroke = g.getStroke();
+                g.setStroke(HIGHLIGHT_STROKE);
+                g.setColor(SEARCH_COLOR);
+                g.draw(matches);
+                matches.reset();
+                g.setStroke(stroke);
+                g.setColor(Color.BLACK);
+            }
+            textCount = 0;
+            shapeCount = 0;
+            area = 0;
+            minX = Double.POSITIVE_INFINITY;
+            minY = Double.POSITIVE_INFINITY;
+            maxX = Double.NEGATIVE_INFINITY;
+            maxY = Double.NEGATIVE_INFINITY;
+        }
+    }
+    
+    /**
+     * Finds the node or collapsed subtree drawn at a point. Nodes are drawn after
+     * subtrees, so they take priority
+     */
+    private static class PickPainter implements TreePainter {
+        private double x;
+        private double y;
+        private String description;
+        // whether the last node or subtree drawn is at the point
+        private boolean picked;
+        
+        public PickPainter(double x, double y) {
+            this.x = x;
+            this.y = y;
+        }
+        
+        public String getDescription() {
+            return description;
+        }
+        
+        @Override
+        public void drawEdge(double x1, double y1, double x2, double y2) {
+        }
+        
+        @Override
+        public void drawNode(double x, double y, double width, String text, int textWidth, Color fill) {
+            picked = this.x >= x && this.x <= x + width && this.y >= y && this.y <= y + HEIGHT;
+            if (picked)
+                description = text;
+        }
+        
+        @Override
+        public void drawSubtree(double x, double y, double left, double right, double bottom, int size,
+                                int height) {
+            picked = this.x >= left && this.x <= right && this.y >= y && this.y <= bottom;
+            if (picked)
+                description = size + " nodes, height " + height;
+        }
+        
+        @Override
+        public void drawStub(double x, double y) {
+            if (this.x >= x - 3 && this.x <= x + 3 && this.y >= y && this.y <= y + STUB_LENGTH)
+                description = "Loading children";
+        }
+        
+        @Override
+        public void drawHighlight(double x, double y, double width, double height, Change change) {
+            if (picked)
+                description += " (" + change.description + ")";
+        }
+        
+        @Override
+        public void drawMatch(double x, double y, double width, double height) {
+            // the search box describes the matches
+        }
+        
+        @Override
+        public void drawReference(double x1, double y1, double cx, double cy, double x2, double y2) {
+        }
+    }
+    
+    /**
+     * Writes the tree as an SVG document. Elements are written as soon as they are drawn,
+     * so no document is built in memory
+     */
+    private static class SvgPainter implements TreePainter {
+        private Writer out;
+        private FontMetrics metrics;
+        
+        public SvgPainter(Writer out, FontMetrics metrics) {
+            this.out = out;
+            this.metrics = metrics;
+        }
+        
+        public FontMetrics getMetrics() {
+            return metrics;
+        }
+        
+        /**
+         * Writes the start of the document
+         * @param width  width of the image
+         * @param height height of the image
+         */
+        public void begin(int width, int height) throws IOException {
+            Font font = metrics.getFont();
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width + "\" height=\"" + height
+                + "\" font-family=\"" + escape(font.getFamily()) + ", sans-serif\" font-size=\""
+                + font.getSize() + "\">\n");
+            out.write("<rect width=\"100%\" height=\"100%\" fill=\"white\"/>\n");
+            out.write("<g stroke=\"black\" stroke-width=\"1.1\">\n");
+        }
+        
+        /**
+         * Writes the end of the document
+         */
+        public void end() throws IOException {
+            out.write("</g>\n</svg>\n");
+        }
+        
+        @Override
+        public void drawEdge(double x1, double y1, double x2, double y2) {
+            try {
+                out.write("<line x1=\"" + format(x1) + "\" y1=\"" + format(y1) + "\" x2=\"" + format(x2)
+                    + "\" y2=\"" + format(y2) + "\"/>\n");
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        @Override
+        public void drawNode(double x, double y, double width, String text, int textWidth, Color fill) {
+            double xx = x + (width - textWidth) / 2;
+            double yy = y + ((HEIGHT - metrics.getHeight()) / 2) + metrics.getAscent();
+            try {
+                out.write("<rect x=\"" + format(x) + "\" y=\"" + format(y) + "\" width=\"" + format(width)
+                    + "\" height=\"" + format(HEIGHT) + "\" rx=\"" + format(width / 8) + "\" ry=\""
+                    + format(HEIGHT / 8) + "\" fill=\"" + (fill.equals(Color.WHITE) ? "white" : "rgb(" + fill.getRed()
+                    + "," + fill.getGreen() + "," + fill.getBlue() + ")") + "\"/>\n");
+                out.write("<text x=\"" + doubleToInt(xx) + "\" y=\"" + doubleToInt(yy) + "\" stroke=\"none\">"
+                    + escape(text) + "</text>\n");
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        @Override
+        public void drawSubtree(double x, double y, double left, double right, double bottom, int size,
+                                int height) {
+            int shade = subtreeShade(size);
+            try {
+                out.write("<polygon points=\"" + format(x) + "," + format(y) + " " + format(right) + ","
+                    + format(bottom) + " " + format(left) + "," + format(bottom) + "\" fill=\"rgb(" + shade + ","
+                    + shade + "," + shade + ")\"><title>" + size + " nodes, height " + height
+                    + "</title></polygon>\n");
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        @Override
+        public void drawStub(double x, double y) {
+            try {
+                out.write("<line x1=\"" + format(x) + "\" y1=\"" + format(y) + "\" x2=\"" + format(x) + "\" y2=\""
+                    + format(y + STUB_LENGTH) + "\" stroke=\"gray\" stroke-dasharray=\"2,2\"/>\n");
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        @Override
+        public void drawHighlight(double x, double y, double width, double height, Change change) {
+            Color color = change.color;
+            try {
+                out.write("<rect x=\"" + format(x) + "\" y=\"" + format(y) + "\" width=\"" + format(width)
+                    + "\" height=\"" + format(height) + "\" rx=\"3\" ry=\"3\" fill=\"none\" stroke=\"rgb("
+                    + color.getRed() + "," + color.getGreen() + "," + color.getBlue() + ")\" stroke-width=\"2\"><title>"
+                    + change.description + "</title></rect>\n");
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        @Override
+        public void drawMatch(double x, double y, double width, double height) {
+            try {
+                out.write("<rect x=\"" + format(x) + "\" y=\"" + format(y) + "\" width=\"" + format(width)
+                    + "\" height=\"" + format(height) + "\" rx=\"3\" ry=\"3\" fill=\"none\" stroke=\"rgb("
+                    + SEARCH_COLOR.getRed() + "," + SEARCH_COLOR.getGreen() + "," + SEARCH_COLOR.getBlue()
+                    + ")\" stroke-width=\"2\"/>\n");
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        @Override
+        public void drawReference(double x1, double y1, double cx, double cy, double x2, double y2) {
+            String color = "rgb(" + REFERENCE_COLOR.getRed() + "," + REFERENCE_COLOR.getGreen() + ","
+                + REFERENCE_COLOR.getBlue() + ")";
+            double[] head = arrowHead(cx, cy, x2, y2);
+            try {
+                out.write("<path d=\"M" + format(x1) + "," + format(y1) + " Q" + format(cx) + "," + format(cy) + " "
+                    + format(x2) + "," + format(y2) + "\" fill=\"none\" stroke=\"" + color
+                    + "\" stroke-dasharray=\"4,3\"/>\n");
+                out.write("<polygon points=\"" + format(x2) + "," + format(y2) + " " + format(head[0]) + ","
+                    + format(head[1]) + " " + format(head[2]) + "," + format(head[3]) + "\" fill=\"" + color
+                    + "\" stroke=\"none\"/>\n");
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        /**
+         * Formats a coordinate with at most two decimal places
+         * @param d coordinate
+         * @return formatted coordinate
+         */
+        private static String format(double d) {
+            long hundredths = Math.round(d * 100);
+            if (hundredths % 100 == 0)
+                return String.valueOf(hundredths / 100);
+            return String.valueOf(hundredths / 100.0);
+        }
+        
+        /**
+         * Escapes text so it can be written in an XML document. Characters XML does not
+         * allow, which are the control characters other than tab, line feed and carriage
+         * return, and U+FFFE and U+FFFF, are replaced by U+FFFD
+         * @param text text to escape
+         * @return escaped text
+         */
+        private static String escape(String text) {
+            StringBuilder builder = null;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                String replacement;
+                switch (c) {
+                    case '&': replacement = "&amp;"; break;
+                    case '<': replacement = "&lt;"; break;
+                    case '>': replacement = "&gt;"; break;
+                    case '"': replacement = "&quot;"; break;
+                    case '\t': case '\n': case '\r': replacement = null; break;
+                    default: replacement = (c < ' ' || c == '\uFFFE' || c == '\uFFFF') ? "\uFFFD" : null;
+                }
+                if (replacement != null && builder == null)
+                    builder = new StringBuilder(text.substring(0, i));
+                if (builder != null) {
+                    if (replacement != null)
+                        builder.append(replacement);
+                    else
+                        builder.append(c);
+                }
+            }
+            return (builder == null) ? text : builder.toString();
+        }
+    }
+    
+    /**
+     * Writes a PNG image with a palette a row at a time, so the image is never held in
+     * memory. Rows are compressed as they come in, and written out in IDAT chunks as the
+     * compressed data fills up. Rows are not filtered, which suits palette images
+     */
+    private static class PngEncoder implements AutoCloseable {
+        private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+        /**
+         * Most bytes of compressed rows per IDAT chunk
+         */
+        private static final int CHUNK_SIZE = 1 << 16;
+        
+        private final DataOutputStream out;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final DeflaterOutputStream rows;
+        private final CRC32 crc = new CRC32();
+        
+        /**
+         * Writes the header and the palette
+         * @param out      stream to write to, which is not closed
+         * @param width    width of the image
+         * @param height   height of the image
+         * @param bitDepth bits per pixel: 1, 2, 4 or 8
+         * @param palette  RGB colors the pixels index, at most 2 to the bit depth
+         * @throws IOException if the stream cannot be written
+         */
+        public PngEncoder(OutputStream out, int width, int height, int bitDepth, int[] palette) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.out.write(SIGNATURE);
+            byte[] header = new byte[13];
+            writeInt(header, 0, width);
+            writeInt(header, 4, height);
+            header[8] = (byte) bitDepth;
+            // palette colors, and default compression, filtering and interlacing
+            header[9] = 3;
+            writeChunk("IHDR", header, 0, header.length);
+            byte[] colors = new byte[palette.length * 3];
+            for (int i = 0; i < palette.length; i++) {
+                colors[3 * i] = (byte) (palette[i] >> 16);
+                colors[3 * i + 1] = (byte) (palette[i] >> 8);
+                colors[3 * i + 2] = (byte) palette[i];
+            }
+            writeChunk("PLTE", colors, 0, colors.length);
+            rows = new DeflaterOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+                
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    writeChunk("IDAT", b, off, len);
+                }
+            }, deflater, CHUNK_SIZE);
+        }
+        
+        /**
+         * Adds the next row of the image
+         * @param pixels array holding the row, packed as many pixels to a byte as fit
+         * @param offset index of the first byte of the row
+         * @param length number of bytes of the row
+         * @throws IOException if the stream cannot be written
+         */
+        public void writeRow(byte[] pixels, int offset, int length) throws IOException {
+            // filter type None
+            rows.write(0);
+            rows.write(pixels, offset, length);
+        }
+        
+        /**
+         * Writes the rest of the compressed rows and the end of the image
+         * @throws IOException if the stream cannot be written
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                rows.finish();
+                writeChunk("IEND", new byte[0], 0, 0);
+                out.flush();
+            }
+            finally {
+                deflater.end();
+            }
+        }
+        
+        private void writeChunk(String type, byte[] data, int offset, int length) throws IOException {
+            byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+            crc.reset();
+            crc.update(typeBytes);
+            crc.update(data, offset, length);
+            out.writeInt(length);
+            out.write(typeBytes);
+            out.write(data, offset, length);
+            out.writeInt((int) crc.getValue());
+        }
+        
+        private static void writeInt(byte[] bytes, int offset, int value) {
+            bytes[offset] = (byte) (value >>> 24);
+            bytes[offset + 1] = (byte) (value >>> 16);
+            bytes[offset + 2] = (byte) (value >>> 8);
+            bytes[offset + 3] = (byte) value;
+        }
+    }
+    
+    /**
+     * Makes the window read only the top levels of a tree before drawing it, for trees
+     * whose accessors are slow, such as nodes paged in from disk. Nodes whose children
+     * have not been read yet are marked with a short dashed line below them. When such a
+     * node comes into view, the levels below it are read on a background thread and drawn
+     * as they arrive, so the time to show a tree depends on what is visible, not on its
+     * size. Lazy layouts are not done in parallel
+     * @param lazyDepth number of levels to read at a time, or 0 to read the whole tree
+     *                  before drawing it (the default)
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setLazyDepth(int lazyDepth) {
+        this.lazyDepth = Math.max(0, lazyDepth);
+        return this;
+    }
+    
+    /**
+     * Sets whether renders are measured: the number of nodes and the deepest depth, the
+     * calls to the accessors and the time spent in them, the time to lay out and to paint
+     * the tree, and the bytes allocated. Each render done by {@link #render} is added to
+     * the {@link RenderStatsMXBean} and emitted as a {@code BinaryTreeViewer.Render}
+     * flight recorder event, which recordings leave out unless it is enabled. So is each
+     * layout of a window: each round of {@link #display}, each {@link #update}, and the
+     * trees of dashboards and diffs. Windows paint their trees a tile at a time later on,
+     * so each tile painted is added to the paint time instead and emitted as a
+     * {@code BinaryTreeViewer.PaintTile} event. Bytes are counted on the thread that laid
+     * out the tree only, so allocations of parallel layouts and of tile painters are left
+     * out. Timing the accessors slows down reading large trees, so this is off by
+     * default, and then costs nothing per node
+     * @param instrumented whether to measure renders
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setInstrumented(boolean instrumented) {
+        this.instrumented = instrumented;
+        getData = instrument(getData);
+        getLeft = instrument(getLeft);
+        getRight = instrument(getRight);
+        getChildren = (getChildren == null) ? null : instrument(getChildren);
+        return this;
+    }
+    
+    /**
+     * @param function accessor set by the user
+     * @return the accessor, counted and timed if the viewer is instrumented
+     */
+    private Function<Object, Object> instrument(Function<Object, Object> function) {
+        if (function instanceof TimedFunction)
+            function = ((TimedFunction) function).function;
+        return instrumented ? new TimedFunction(function, accessorCalls, accessorTime) : function;
+    }
+    
+    /**
+     * Sets how the nodes of trees are placed side by side. The default is
+     * {@link LayoutStrategy#IN_ORDER}
+     * @param layoutStrategy way of placing nodes
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setLayoutStrategy(LayoutStrategy layoutStrategy) {
+        this.layoutStrategy = layoutStrategy;
+        return this;
+    }
+    
+    /**
+     * Sets whether trees are laid out on several threads of the common fork join pool.
+     * The accessors are then called from those threads, so functions set with
+     * {@link #setDataFunction(Function)} and the like must be safe to call concurrently.
+     * The layout is the same either way, but large trees are laid out faster on a
+     * machine with many cores. Trees with cycles or shared nodes, and trees whose nodes
+     * have any number of children, are laid out serially
+     * @param parallel whether to lay out trees in parallel
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setParallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+    
+    /**
+     * Sets how small a subtree can get on the screen before it is drawn as a single shaded
+     * triangle instead of node by node. The shade gets darker with the number of nodes and
+     * the triangle reaches down to the deepest node
+     * @param pixels minimum width in pixels of a subtree drawn node by node
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setDetailWidth(double pixels) {
+        this.detailWidth = pixels;
+        TreeCanvas canvas = this.canvas;
+        if (canvas != null)
+            SwingUtilities.invokeLater(() -> canvas.setDetailWidth(pixels));
+        return this;
+    }
+    
+    /**
+     * Sets whether trees are drawn without antialiasing. Edges and outlines are then one
+     * pixel wide and jagged, but large trees are drawn several times faster. Off by
+     * default
+     * @param fastPaint whether to draw without antialiasing
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setFastPaint(boolean fastPaint) {
+        this.fastPaint = fastPaint;
+        TreeCanvas canvas = this.canvas;
+        if (canvas != null)
+            SwingUtilities.invokeLater(() -> canvas.setFastPaint(fastPaint));
+        return this;
+    }
+    
+    /**
+     * Sets whether windows opened by {@link #display(Object)} draw the tree by active
+     * rendering. Each frame is then copied from the cached tiles into a back buffer kept
+     * in video memory and flipped to the screen, at most once per display refresh, and
+     * tiles missing from the view are drawn on other threads instead of while painting.
+     * Panning and zooming stay smooth on large windows, but nodes show no tooltips. Off
+     * by default, and only applies to windows opened afterwards
+     * @param activeRendering whether to draw windows by active rendering
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setActiveRendering(boolean activeRendering) {
+        this.activeRendering = activeRendering;
+        return this;
+    }
+    
+    /**
+     * Sets whether windows opened by {@link #display(Object)} show why lookups in the tree
+     * are slow. Nodes are filled by how much higher one of their child subtrees is than
+     * another: yellow for 2 or 3 levels, orange for 4 to 7 and red for more. Beside the
+     * tree are its height, the comparisons per lookup against a balanced binary search
+     * tree of the same size, the number of nodes at each depth and the most skewed
+     * subtrees, which are centered in the view when selected. The shape is measured in
+     * one pass over the index of each layout. Off by default, and only applies to
+     * windows opened afterwards
+     * @param analytics whether to show the shape of trees
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setAnalytics(boolean analytics) {
+        this.analytics = analytics;
+        return this;
+    }
+    
+    /**
+     * Makes the viewer copy trees that other threads change while holding a lock, so each
+     * drawing shows the tree as it was at one moment. The data and children of every node
+     * are copied while the lock is held, then the tree is laid out and drawn from the copy
+     * after it is released, so writers only wait for the copy. Data other than strings,
+     * boxed primitives and enums is turned into text while the lock is held
+     * <p>
+     * Trees read a few levels at a time (see {@link #setLazyDepth(int)}) hold the lock
+     * while each drawing reads its levels instead. Copied trees are laid out serially
+     * @param lock lock to hold while reading the tree, such as the read lock of the
+     *             {@link java.util.concurrent.locks.ReadWriteLock} writers take, or null
+     *             to read the tree without locking (the default)
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setCaptureLock(Lock lock) {
+        captureLock = lock;
+        captureStampedLock = null;
+        return this;
+    }
+    
+    /**
+     * Like {@link #setCaptureLock(Lock)}, for trees whose writers hold the write lock of a
+     * StampedLock. The tree is first copied without locking, and the copy is kept if no
+     * writer took the lock while it was read. Otherwise it is thrown away, along with any
+     * exception the torn tree caused, and read again, so writers are not held up at all
+     * unless they keep tearing the copies. Once the optimistic reads run out, the tree is
+     * copied holding the read lock
+     * @param lock            lock writers of the tree hold, or null to read the tree
+     *                        without locking
+     * @param optimisticReads number of times to copy the tree without locking before
+     *                        taking the read lock, or 0 to always take it
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setCaptureLock(StampedLock lock, int optimisticReads) {
+        captureLock = null;
+        captureStampedLock = lock;
+        this.optimisticReads = Math.max(0, optimisticReads);
+        return this;
+    }
+    
+    /**
+     * Use this method if you want this to get the data from an instance variable (which
+     * can be private). The variable may be declared in a superclass of the node class
+     * @param variableName name of variable to get in the node class
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setDataVariable(String variableName) {
+        setDataFunction(new FieldFunction(variableName, "data"));
+        return this;
+    }
+    
+    /**
+     * Use this method if you want this to get the data from a method. The method must
+     * return the data and not take any parameters
+     * @param methodName name of method to call in the node class
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setDataMethod(String methodName) {
+        setDataFunction(new MethodFunction(methodName));
+        return this;
+    }
+    
+    /**
+     * Use this method if you want this to get the data from a function. The function
+     * passes in a node and expects its data
+     * @param getData function to use when extracting data
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setDataFunction(Function<Object, Object> getData) {
+        this.getData = instrument(getData);
+        return this;
+    }
+    
+    /**
+     * Use this method if you want this to get the left child from an instance variable
+     * (which can be private). The variable may be declared in a superclass of the node
+     * class
+     * @param variableName name of variable to get in the node class
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setLeftChildVariable(String variableName) {
+        setLeftChildFunction(new FieldFunction(variableName, "left child"));
+        return this;
+    }
+    
+    /**
+     * Use this method if you want this to get the left child from a method. The method
+     * must return the left child node and not take any parameters
+     * @param methodName name of method to call in the node class
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setLeftChildMethod(String methodName) {
+        setLeftChildFunction(new MethodFunction(methodName));
+        return this;
+    }
+    
+    /**
+     * Use this method if you want this to get the left child from a function. The
+     * function passes in a node and expects its left child node
+     * @param getLeft function to use when extracting left child node
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setLeftChildFunction(Function<Object, Object> getLeft) {
+        this.getLeft = instrument(getLeft);
+        return this;
+    }
+    
+    /**
+     * Use this method if you want this to get the right child from an instance variable
+     * (which can be private). The variable may be declared in a superclass of the node
+     * class
+     * @param variableName name of variable to get in the node class
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setRightChildVariable(String variableName) {
+        setRightChildFunction(new FieldFunction(variableName, "right child"));
+        return this;
+    }
+    
+    /**
+     * Use this method if you want this to get the right child from a method. The method
+     * must return the right child node and not take any parameters
+     * @param methodName name of method to call in the node class
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setRightChildMethod(String methodName) {
+        setRightChildFunction(new MethodFunction(methodName));
+        return this;
+    }
+    
+    /**
+     * Use this method if you want this to get the right child from a function. The
+     * function passes in a node and expects its right child node
+     * @param getRight function to use when extracting right child node
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setRightChildFunction(Function<Object, Object> getRight) {
+        this.getRight = instrument(getRight);
+        return this;
+    }
+    
+    /**
+     * Use this method if the nodes have any number of children, kept in an instance
+     * variable (which can be private) holding an Iterable or an array. The variable may be
+     * declared in a superclass of the node class. The children are then read instead of
+     * the left and right child, and null children are left out
+     * @param variableName name of variable to get in the node class
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setChildrenVariable(String variableName) {
+        getChildren = instrument(new FieldFunction(variableName, "children"));
+        return this;
+    }
+    
+    /**
+     * Use this method if the nodes have any number of children, returned by a method as
+     * an Iterable or an array. The method must not take any parameters. The children are
+     * then read instead of the left and right child, and null children are left out
+     * @param methodName name of method to call in the node class
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setChildrenMethod(String methodName) {
+        getChildren = instrument(new MethodFunction(methodName));
+        return this;
+    }
+    
+    /**
+     * Use this method if the nodes have any number of children, returned by a function.
+     * The function passes in a node and expects its children from left to right. The
+     * children are then read instead of the left and right child, and null children are
+     * left out. Trees with any number of children are not laid out in parallel, and
+     * cannot be saved as snapshots
+     * @param getChildren function to use when extracting children, or null to go back to
+     *                    the left and right child
+     * @return this for chaining
+     */
+    public BinaryTreeViewer setChildrenFunction(Function<Object, Iterable<?>> getChildren) {
+        this.getChildren = (getChildren == null) ? null : instrument(getChildren::apply);
+        return this;
+    }
+    
+    /**
+     * Counts the calls to an accessor and the nanoseconds spent in them
+     */
+    private static class TimedFunction implements Function<Object, Object> {
+        private final Function<Object, Object> function;
+        private final LongAdder calls;
+        private final LongAdder time;
+        
+        public TimedFunction(Function<Object, Object> function, LongAdder calls, LongAdder time) {
+            this.function = function;
+            this.calls = calls;
+            this.time = time;
+        }
+        
+        @Override
+        public Object apply(Object o) {
+            long start = System.nanoTime();
+            try {
+                return function.apply(o);
+            }
+            finally {
+                time.add(System.nanoTime() - start);
+                calls.increment();
+            }
+        }
+    }
+    
+    /**
+     * Implementation of Function that takes in a value during construction and reads
+     * the node through a compiled accessor. The accessor is resolved once per node class
+     * and shared between all viewers, so extraction runs at near direct call speed
+     */
+    private static abstract class ValueFunction implements Function<Object, Object> {
+        private String value;
+        /**
+         * Accessor of the last node class seen, checked before the shared cache
+         */
+        private volatile Accessor last;
+        
+        public ValueFunction(String value) {
+            this.value = value;
+        }
+        
+        public String getValue() {
+            return value;
+        }
+        
+        @Override
+        public Object apply(Object o) {
+            Class<?> type = o.getClass();
+            Accessor accessor = last;
+            if (accessor == null || accessor.type != type) {
+                accessor = new Accessor(type, lookup(type));
+                last = accessor;
+            }
+            try {
+                return (Object) accessor.handle.invokeExact(o);
+            }
+            catch (Error e) {
+                throw e;
+            }
+            catch (Throwable t) {
+                throw new IllegalArgumentException(errorMessage(), t);
+            }
+        }
+        
+        /**
+         * Gets the accessor of a node class from the shared cache, resolving it if needed
+         * @param type class of the node
+         * @return accessor taking a node and returning the value
+         */
+        private MethodHandle lookup(Class<?> type) {
+            Map<String, MethodHandle> accessors = cache().get(type);
+            MethodHandle handle = accessors.get(value);
+            if (handle == null) {
+                try {
+                    handle = resolve(type).asType(MethodType.methodType(Object.class, Object.class));
+                }
+                catch (ReflectiveOperationException | RuntimeException e) {
+                    throw new IllegalArgumentException(errorMessage(), e);
+                }
+                accessors.put(value, handle);
+            }
+            return handle;
+        }
+        
+        /**
+         * @return cache of accessors by node class and member name
+         */
+        protected abstract ClassValue<Map<String, MethodHandle>> cache();
+        
+        /**
+         * Finds the member in the node class or its superclasses
+         * @param type class of the node
+         * @return accessor of the member
+         * @throws ReflectiveOperationException if the member does not exist
+         */
+        protected abstract MethodHandle resolve(Class<?> type) throws ReflectiveOperationException;
+        
+        /**
+         * @return message to show when the member cannot be accessed
+         */
+        protected abstract String errorMessage();
+    }
+    
+    /**
+     * Accessor compiled for a single node class
+     */
+    private static class Accessor {
+        private final Class<?> type;
+        private final MethodHandle handle;
+        
+        public Accessor(Class<?> type, MethodHandle handle) {
+            this.type = type;
+            this.handle = handle;
+        }
+    }
+    
+    /**
+     * Reads an instance variable (which can be private)
+     */
+    private static class FieldFunction extends ValueFunction {
+        private static final ClassValue<Map<String, MethodHandle>> GETTERS = new AccessorCache();
+        
+        /**
+         * Description of the variable used in error messages
+         */
+        private String description;
+        
+        public FieldFunction(String variableName, String description) {
+            super(variableName);
+            this.description = description;
+        }
+        
+        @Override
+        protected ClassValue<Map<String, MethodHandle>> cache() {
+            return GETTERS;
+        }
+        
+        @Override
+        protected MethodHandle resolve(Class<?> type) throws ReflectiveOperationException {
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (field.getName().equals(getValue()) && !Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        return MethodHandles.lookup().unreflectGetter(field);
+                    }
+                }
+            }
+            throw new NoSuchFieldException(getValue());
+        }
+        
+        @Override
+        protected String errorMessage() {
+            return "Exception when accessing data of node. Make sure " + description + " variable name "
+                + getValue() + " is spelled correctly.";
+        }
+    }
+    
+    /**
+     * Calls a method that takes no parameters (which can be private)
+     */
+    private static class MethodFunction extends ValueFunction {
+        private static final ClassValue<Map<String, MethodHandle>> METHODS = new AccessorCache();
+        
+        public MethodFunction(String methodName) {
+            super(methodName.replaceAll("[()]", ""));
+        }
+        
+        @Override
+        protected ClassValue<Map<String, MethodHandle>> cache() {
+            return METHODS;
+        }
+        
+        @Override
+        protected MethodHandle resolve(Class<?> type) throws ReflectiveOperationException {
+            Method method = null;
+            for (Class<?> c = type; c != null && method == null; c = c.getSuperclass()) {
+                try {
+                    method = c.getDeclaredMethod(getValue());
+                }
+                catch (NoSuchMethodException e) {
+                    // keep looking in the superclass
+                }
+            }
+            if (method == null)
+                method = type.getMethod(getValue());
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        }
+        
+        @Override
+        protected String errorMessage() {
+            return "Exception when accessing method. Make sure the method name "
+                + getValue() + " is spelled correctly, has no parameters, and returns an object.";
+        }
+    }
+    
+    /**
+     * Map from member name to compiled accessor for each node class
+     */
+    private static class AccessorCache extends ClassValue<Map<String, MethodHandle>> {
+        @Override
+        protected Map<String, MethodHandle> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    }
+    
+    /**
+     * Exits the frame. Use in case of any exception
+     */
+    private void exitFrame() {
+        JFrame frame = this.frame;
+        if (frame != null)
+            SwingUtilities.invokeLater(() -> frame.dispatchEvent(new WindowEvent(frame, WindowEvent.WINDOW_CLOSING)));
+    }
+    
+    /**
+     * Converts a double to an integer by calling {@link Math#round(double)}
+     * @param d double to convert to integer
+     * @return integer version of the double
+     */
+    private static int doubleToInt(double d) {
+        return (int) Math.round(d);
+    }
+}